@@ -16,8 +16,14 @@
 
 package org.springframework.session.data.couchbase;
 
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.springframework.core.convert.TypeDescriptor;
 import org.springframework.core.convert.converter.GenericConverter;
@@ -25,6 +31,8 @@ import org.springframework.lang.Nullable;
 import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.Session;
 
+import com.couchbase.client.java.document.ByteArrayDocument;
+import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.json.JsonObject;
 
@@ -44,26 +52,127 @@ public abstract class AbstractCouchbaseSessionConverter implements GenericConver
 	public static final String ATTRIBUTES = "_attr";
 	public static final String PRINCIPAL_FIELD_NAME = "_principal";
 	public static final String EXPIRE_AT_FIELD_NAME = "_expireAt";
-	private static final String SPRING_SECURITY_CONTEXT = "SPRING_SECURITY_CONTEXT";
+	public static final String INDEXED_ATTRIBUTE_PREFIX = "_idx_";
+	private static final String SPRING_SECURITY_CONTEXT = DefaultPrincipalNameResolver.SPRING_SECURITY_CONTEXT;
 
-	protected String extractPrincipal(Session expiringSession) {
+	/**
+	 * Time documents are kept after their session expired, which leaves the repository
+	 * time to publish the expiry and tolerates clock differences with the server.
+	 */
+	private static final long EXPIRY_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private Set<String> indexedAttributes = Collections.emptySet();
+
+	private PrincipalNameResolver principalNameResolver = new DefaultPrincipalNameResolver();
+
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * Sets the clock stored sessions are checked against in
+	 * {@link #isExpired(Document)}.
+	 *
+	 * @param clock the clock
+	 */
+	public void setClock(Clock clock) {
+		this.clock = Assert.requireNonNull(clock, "clock cannot be null");
+	}
+
+	protected Clock getClock() {
+		return this.clock;
+	}
+
+	/**
+	 * Sets how the principal stored with sessions is resolved.
+	 *
+	 * @param principalNameResolver the principal name resolver
+	 */
+	public void setPrincipalNameResolver(PrincipalNameResolver principalNameResolver) {
+		this.principalNameResolver = Assert.requireNonNull(principalNameResolver,
+				"principalNameResolver cannot be null");
+	}
+
+	/**
+	 * Sets the attributes which are also written as a top-level field, see
+	 * {@link #indexedField(String)}, so that sessions can be queried by their value.
+	 *
+	 * @param indexedAttributes the names of the indexed attributes
+	 */
+	public void setIndexedAttributes(Collection<String> indexedAttributes) {
+		this.indexedAttributes = new LinkedHashSet<>(indexedAttributes);
+	}
+
+	protected Set<String> getIndexedAttributes() {
+		return this.indexedAttributes;
+	}
 
-		String resolvedPrincipal = AuthenticationParser
-				.extractName(expiringSession.getAttribute(SPRING_SECURITY_CONTEXT));
+	/**
+	 * @param attributeName the name of an indexed attribute
+	 * @return the name of the top-level field holding the value of the attribute
+	 */
+	public static String indexedField(String attributeName) {
+		return INDEXED_ATTRIBUTE_PREFIX + attributeName;
+	}
 
-		if (resolvedPrincipal != null) {
-			return resolvedPrincipal;
+	/**
+	 * Indexed attributes are stored as strings, so that they can be looked up with the
+	 * value passed to {@code findByIndexNameAndIndexValue}.
+	 */
+	@Nullable
+	protected static String indexedValue(@Nullable Object attributeValue) {
+		return attributeValue != null ? attributeValue.toString() : null;
+	}
+
+	/**
+	 * Resolves the principal of the session, which a {@link CouchbaseSession} remembers
+	 * until the attributes it is resolved from change.
+	 */
+	@Nullable
+	protected String extractPrincipal(Session expiringSession) {
+
+		if (expiringSession instanceof CouchbaseSession) {
+			return ((CouchbaseSession) expiringSession)
+					.resolvePrincipal(this.principalNameResolver);
 		}
-		else {
-			return expiringSession.getAttribute(
-					FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
+		return this.principalNameResolver.resolvePrincipal(expiringSession);
+	}
+
+	/**
+	 * Computes the expiry of the document storing the session, so that Couchbase
+	 * removes it shortly after the session expires.
+	 *
+	 * @param session the session to store
+	 * @return the document expiry, {@code 0} for sessions which never expire
+	 */
+	protected int getDocumentExpiry(CouchbaseSession session) {
+
+		if (session.getMaxInactiveInterval().isNegative()) {
+			return 0;
 		}
+
+		return CBSessionUtils
+				.toDocumentExpiry(session.getExpireAtMillis() + EXPIRY_GRACE_MILLIS);
+	}
+
+	/**
+	 * Checks whether any of the attributes the principal is resolved from was changed
+	 * since the session was loaded.
+	 */
+	protected boolean isPrincipalChanged(CouchbaseSession session) {
+
+		return isChanged(session, SPRING_SECURITY_CONTEXT) || isChanged(session,
+				FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
+	}
+
+	private static boolean isChanged(CouchbaseSession session, String attributeName) {
+		return session.getChangedAttributeNames().contains(attributeName)
+				|| session.getRemovedAttributeNames().contains(attributeName);
 	}
 
 	public Set<ConvertiblePair> getConvertibleTypes() {
 
-		return Collections.singleton(
-				new ConvertiblePair(JsonDocument.class, CouchbaseSession.class));
+		return new HashSet<>(Arrays.asList(
+				new ConvertiblePair(JsonDocument.class, CouchbaseSession.class),
+				new ConvertiblePair(ByteArrayDocument.class, CouchbaseSession.class)));
 	}
 
 	@SuppressWarnings("unchecked")
@@ -78,6 +187,12 @@ public abstract class AbstractCouchbaseSessionConverter implements GenericConver
 		if (JsonDocument.class.isAssignableFrom(sourceType.getType())) {
 			return convert((JsonDocument) source);
 		}
+		else if (ByteArrayDocument.class.isAssignableFrom(sourceType.getType())) {
+			return convertFromBinary((ByteArrayDocument) source);
+		}
+		else if (ByteArrayDocument.class.isAssignableFrom(targetType.getType())) {
+			return convertToBinary((CouchbaseSession) source);
+		}
 		else {
 			return convert((CouchbaseSession) source);
 		}
@@ -88,4 +203,96 @@ public abstract class AbstractCouchbaseSessionConverter implements GenericConver
 	protected abstract CouchbaseSession convert(JsonDocument sessionWrapper);
 
 	protected abstract CouchbaseSession convertObject(JsonObject sessionWrapper);
+
+	/**
+	 * Tells whether this converter implements {@link #convertToBinary(CouchbaseSession)}
+	 * and {@link #convertFromBinary(ByteArrayDocument)}, which the repositories check on
+	 * startup when sessions are stored as {@link SessionDocumentFormat#BINARY} documents.
+	 *
+	 * @return {@code false} by default
+	 */
+	protected boolean supportsBinary() {
+		return false;
+	}
+
+	/**
+	 * Converts the session into a binary document, used with
+	 * {@link SessionDocumentFormat#BINARY}. Not supported by default, converters which
+	 * implement it also override {@link #supportsBinary()}.
+	 *
+	 * @param session the session to convert
+	 * @return the binary document
+	 */
+	protected ByteArrayDocument convertToBinary(CouchbaseSession session) {
+		throw new UnsupportedOperationException(
+				getClass().getName() + " does not support binary session documents");
+	}
+
+	/**
+	 * Converts a binary document written by {@link #convertToBinary(CouchbaseSession)}
+	 * back into a session. Not supported by default.
+	 *
+	 * @param sessionWrapper the binary document
+	 * @return the session
+	 */
+	protected CouchbaseSession convertFromBinary(ByteArrayDocument sessionWrapper) {
+		throw new UnsupportedOperationException(
+				getClass().getName() + " does not support binary session documents");
+	}
+
+	/**
+	 * Tells whether the session stored in the document has expired, reading only its
+	 * max inactive interval and expiration time, so that expired sessions are discarded
+	 * without decoding their attributes. Binary documents are converted by default.
+	 *
+	 * @param document the session document
+	 * @return {@code true} if the session has expired
+	 */
+	protected boolean isExpired(Document<?> document) {
+
+		if (document instanceof JsonDocument) {
+			JsonObject content = ((JsonDocument) document).content();
+			return isExpired(content.getLong(MAX_INTERVAL),
+					content.getLong(EXPIRE_AT_FIELD_NAME), this.clock.millis());
+		}
+		CouchbaseSession session = convertFromBinary((ByteArrayDocument) document);
+		return session != null && isExpired(session.getIntervalSeconds(),
+				session.getExpireAtMillis(), this.clock.millis());
+	}
+
+	/**
+	 * Same check as {@link CouchbaseSession#isExpired()}, on stored values.
+	 */
+	protected static boolean isExpired(@Nullable Long maxInactiveIntervalSeconds,
+			@Nullable Long expireAt) {
+
+		return isExpired(maxInactiveIntervalSeconds, expireAt,
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Same check as {@link CouchbaseSession#isExpired()}, on stored values.
+	 *
+	 * @param now the current time in milliseconds since the epoch
+	 */
+	protected static boolean isExpired(@Nullable Long maxInactiveIntervalSeconds,
+			@Nullable Long expireAt, long now) {
+
+		return maxInactiveIntervalSeconds != null && maxInactiveIntervalSeconds >= 0
+				&& expireAt != null && now > expireAt;
+	}
+
+	/**
+	 * Converts the changes made to an already stored session into a partial update. The
+	 * default implementation returns {@code null}, meaning the whole document is
+	 * replaced on every save.
+	 *
+	 * @param session the session to save
+	 * @return the partial update, or {@code null} if the whole document has to be
+	 *     written
+	 */
+	@Nullable
+	protected CouchbaseSessionDelta convertDelta(CouchbaseSession session) {
+		return null;
+	}
 }
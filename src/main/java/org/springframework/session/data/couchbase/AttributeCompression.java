@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.springframework.util.Assert;
+
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * Compresses serialized attributes above a size threshold. Compressed values start with
+ * a header made of a magic number, the codec and the uncompressed length, so values
+ * without it are returned as they are and documents written with and without
+ * compression can be read side by side.
+ */
+final class AttributeCompression {
+
+	private static final byte[] MAGIC = { (byte) 0xCB, (byte) 0x5A, (byte) 0xC0 };
+
+	/**
+	 * Magic number, codec and uncompressed length.
+	 */
+	private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+	private final CompressionCodec codec;
+	private final int threshold;
+	private final Map<CompressionCodec, CompressionStatistics> statistics = new EnumMap<>(
+			CompressionCodec.class);
+
+	AttributeCompression(CompressionCodec codec, int threshold) {
+		Assert.notNull(codec, "codec cannot be null");
+		Assert.isTrue(threshold >= 0, "threshold cannot be negative");
+		this.codec = codec;
+		this.threshold = threshold;
+		for (CompressionCodec c : CompressionCodec.values()) {
+			this.statistics.put(c, new CompressionStatistics());
+		}
+	}
+
+	CompressionStatistics getStatistics(CompressionCodec codec) {
+		return this.statistics.get(codec);
+	}
+
+	/**
+	 * @return the compressed value, or the given one if it is below the threshold or
+	 *     doesn't get any smaller
+	 */
+	byte[] compress(byte[] value) {
+
+		if (this.codec == CompressionCodec.NONE || value.length < this.threshold) {
+			return value;
+		}
+
+		long start = System.nanoTime();
+		ByteBuffer buffer = this.codec == CompressionCodec.LZ4 ? Lz4.compress(value)
+				: deflate(value);
+		if (buffer.position() >= value.length) {
+			return value;
+		}
+		buffer.put(0, MAGIC[0]).put(1, MAGIC[1]).put(2, MAGIC[2])
+				.put(MAGIC.length, this.codec.getId())
+				.putInt(MAGIC.length + 1, value.length);
+
+		byte[] compressed = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, compressed, 0, compressed.length);
+		this.statistics.get(this.codec).recordCompression(value.length,
+				compressed.length, System.nanoTime() - start);
+		return compressed;
+	}
+
+	byte[] decompress(byte[] value) {
+
+		if (!isCompressed(value)) {
+			return value;
+		}
+
+		long start = System.nanoTime();
+		CompressionCodec valueCodec = CompressionCodec.forId(value[MAGIC.length]);
+		int length = ByteBuffer.wrap(value, MAGIC.length + 1, 4).getInt();
+		byte[] decompressed = valueCodec == CompressionCodec.LZ4
+				? Lz4.decompress(value, HEADER_SIZE, length)
+				: inflate(value, HEADER_SIZE, length);
+		this.statistics.get(valueCodec)
+				.recordDecompression(System.nanoTime() - start);
+		return decompressed;
+	}
+
+	private static boolean isCompressed(byte[] value) {
+		return value.length > HEADER_SIZE && value[0] == MAGIC[0]
+				&& value[1] == MAGIC[1] && value[2] == MAGIC[2];
+	}
+
+	private static ByteBuffer deflate(byte[] value) {
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		try {
+			deflater.setInput(value);
+			deflater.finish();
+			// stop as soon as the output isn't smaller than the input
+			byte[] output = new byte[value.length];
+			int length = HEADER_SIZE;
+			while (!deflater.finished() && length < output.length) {
+				length += deflater.deflate(output, length, output.length - length);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(output);
+			buffer.position(deflater.finished() ? length : output.length);
+			return buffer;
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] value, int offset, int length) {
+
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(value, offset, value.length - offset);
+			byte[] output = new byte[length];
+			int read = 0;
+			while (read < length && !inflater.finished()) {
+				int n = inflater.inflate(output, read, length - read);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += n;
+			}
+			if (read != length) {
+				throw new IllegalStateException("Compressed attribute is truncated");
+			}
+			return output;
+		}
+		catch (DataFormatException ex) {
+			throw new IllegalStateException("Compressed attribute is corrupt", ex);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Kept apart so LZ4 is only loaded when it is used.
+	 */
+	private static final class Lz4 {
+
+		private static final LZ4Factory FACTORY = LZ4Factory.fastestInstance();
+
+		static ByteBuffer compress(byte[] value) {
+			byte[] output = new byte[HEADER_SIZE
+					+ FACTORY.fastCompressor().maxCompressedLength(value.length)];
+			int length = FACTORY.fastCompressor().compress(value, 0, value.length,
+					output, HEADER_SIZE);
+			ByteBuffer buffer = ByteBuffer.wrap(output);
+			buffer.position(HEADER_SIZE + length);
+			return buffer;
+		}
+
+		static byte[] decompress(byte[] value, int offset, int length) {
+			byte[] output = new byte[length];
+			FACTORY.fastDecompressor().decompress(value, offset, output, 0, length);
+			return output;
+		}
+	}
+}
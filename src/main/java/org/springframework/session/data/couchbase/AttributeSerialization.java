@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.List;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.lang.Nullable;
+import org.springframework.util.ClassUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ * Serialization mechanisms available for session attributes.
+ */
+public enum AttributeSerialization {
+
+	/**
+	 * Standard Java serialization, see {@link JdkCouchbaseSessionConverter}.
+	 */
+	JDK,
+
+	/**
+	 * Jackson JSON with polymorphic type information, see
+	 * {@link JacksonCouchbaseSessionConverter}.
+	 */
+	JSON,
+
+	/**
+	 * Jackson binary Smile format with polymorphic type information, see
+	 * {@link JacksonCouchbaseSessionConverter}. Requires
+	 * {@code jackson-dataformat-smile}.
+	 */
+	SMILE,
+
+	/**
+	 * Kryo binary serialization, see {@link KryoCouchbaseSessionConverter}. Requires
+	 * {@code kryo}.
+	 */
+	KRYO;
+
+	private static final String SMILE_FACTORY_CLASS = "com.fasterxml.jackson.dataformat.smile.SmileFactory";
+
+	/**
+	 * Creates the converter using this serialization mechanism.
+	 *
+	 * @param documentTypeName the name of the type attribute
+	 * @param documentValue the value of the type attribute
+	 * @param maxExpirationTime not used anymore, documents expire with their session
+	 * @param keepStringAsLiteral whether string attributes are stored as plain fields
+	 * @param registeredClasses classes registered up front, used by {@link #KRYO}
+	 * @param classLoader the class loader used to resolve types, or {@code null} for
+	 *     the default one
+	 * @return the converter
+	 */
+	public JdkCouchbaseSessionConverter createConverter(String documentTypeName,
+			String documentValue, Integer maxExpirationTime, boolean keepStringAsLiteral,
+			List<Class<?>> registeredClasses, @Nullable ClassLoader classLoader) {
+
+		switch (this) {
+		case JSON:
+			return new JacksonCouchbaseSessionConverter(
+					JacksonCouchbaseSessionConverter
+							.createObjectMapper(new JsonFactory(), classLoader),
+					documentTypeName, documentValue, maxExpirationTime,
+					keepStringAsLiteral);
+		case SMILE:
+			// created reflectively as Smile is an optional dependency
+			JsonFactory smileFactory = (JsonFactory) BeanUtils.instantiateClass(
+					ClassUtils.resolveClassName(SMILE_FACTORY_CLASS, classLoader));
+			return new JacksonCouchbaseSessionConverter(
+					JacksonCouchbaseSessionConverter.createObjectMapper(smileFactory,
+							classLoader),
+					documentTypeName, documentValue, maxExpirationTime,
+					keepStringAsLiteral);
+		case KRYO:
+			return new KryoCouchbaseSessionConverter(registeredClasses, classLoader,
+					documentTypeName, documentValue, maxExpirationTime,
+					keepStringAsLiteral);
+		default:
+			return new JdkCouchbaseSessionConverter(documentTypeName, documentValue,
+					maxExpirationTime, keepStringAsLiteral);
+		}
+	}
+}
@@ -16,6 +16,8 @@
 package org.springframework.session.data.couchbase;
 
 import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.lang.Nullable;
 
@@ -29,7 +31,13 @@ final class AuthenticationParser {
 
 	private static final String NAME_EXPRESSION = "authentication?.name";
 
-	private static final SpelExpressionParser PARSER = new SpelExpressionParser();
+	/**
+	 * Parsed once, and compiled to bytecode once it has been evaluated a few times.
+	 */
+	private static final Expression EXPRESSION = new SpelExpressionParser(
+			new SpelParserConfiguration(SpelCompilerMode.MIXED,
+					AuthenticationParser.class.getClassLoader()))
+							.parseExpression(NAME_EXPRESSION);
 
 	private AuthenticationParser() {
 	}
@@ -47,8 +55,6 @@ final class AuthenticationParser {
 			return null;
 		}
 
-		Expression expression = PARSER.parseExpression(NAME_EXPRESSION);
-
-		return expression.getValue(authentication, String.class);
+		return EXPRESSION.getValue(authentication, String.class);
 	}
 }
@@ -15,17 +15,36 @@
  */
 package org.springframework.session.data.couchbase;
 
+import java.util.concurrent.TimeUnit;
+
 import org.springframework.core.convert.TypeDescriptor;
 import org.springframework.lang.Nullable;
 
+import com.couchbase.client.java.document.ByteArrayDocument;
+import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.JsonDocument;
-import com.couchbase.client.java.document.json.JsonObject;
 
 /**
  * @author Denis Rosa
  */
 public final class CBSessionUtils {
 
+	private static final long MAX_RELATIVE_EXPIRY_SECONDS = TimeUnit.DAYS.toSeconds(30);
+
+	/**
+	 * Checks on startup that the converter can write sessions in the document format.
+	 */
+	static void checkDocumentFormat(
+			AbstractCouchbaseSessionConverter couchbaseSessionConverter,
+			SessionDocumentFormat documentFormat) {
+
+		if (documentFormat == SessionDocumentFormat.BINARY
+				&& !couchbaseSessionConverter.supportsBinary()) {
+			throw new IllegalStateException(couchbaseSessionConverter.getClass().getName()
+					+ " does not support binary session documents");
+		}
+	}
+
 	@Nullable
 	static JsonDocument convertToJsonDoc(
 			AbstractCouchbaseSessionConverter couchbaseSessionConverter,
@@ -36,23 +55,91 @@ public final class CBSessionUtils {
 				TypeDescriptor.valueOf(JsonDocument.class));
 	}
 
+	@Nullable
+	static ByteArrayDocument convertToBinaryDoc(
+			AbstractCouchbaseSessionConverter couchbaseSessionConverter,
+			CouchbaseSession session) {
+
+		return (ByteArrayDocument) couchbaseSessionConverter.convert(session,
+				TypeDescriptor.valueOf(CouchbaseSession.class),
+				TypeDescriptor.valueOf(ByteArrayDocument.class));
+	}
+
+	@Nullable
+	static CouchbaseSession convertBinaryToSession(
+			AbstractCouchbaseSessionConverter couchbaseSessionConverter,
+			ByteArrayDocument session) {
+
+		return markPersisted((CouchbaseSession) couchbaseSessionConverter.convert(
+				session, TypeDescriptor.valueOf(ByteArrayDocument.class),
+				TypeDescriptor.valueOf(CouchbaseSession.class)));
+	}
+
 	@Nullable
 	static CouchbaseSession convertToSession(
 			AbstractCouchbaseSessionConverter couchbaseSessionConverter,
 			JsonDocument session) {
 
-		return (CouchbaseSession) couchbaseSessionConverter.convert(session,
-				TypeDescriptor.valueOf(JsonDocument.class),
-				TypeDescriptor.valueOf(CouchbaseSession.class));
+		return markPersisted((CouchbaseSession) couchbaseSessionConverter.convert(
+				session, TypeDescriptor.valueOf(JsonDocument.class),
+				TypeDescriptor.valueOf(CouchbaseSession.class)));
+	}
+
+	/**
+	 * Converts a JSON or binary session document, remembering its CAS in the session.
+	 */
+	@Nullable
+	static CouchbaseSession convertDocumentToSession(
+			AbstractCouchbaseSessionConverter couchbaseSessionConverter,
+			Document<?> document) {
+
+		CouchbaseSession session = document instanceof ByteArrayDocument
+				? convertBinaryToSession(couchbaseSessionConverter,
+						(ByteArrayDocument) document)
+				: convertToSession(couchbaseSessionConverter, (JsonDocument) document);
+		if (session != null) {
+			session.setCas(document.cas());
+		}
+		return session;
+	}
+
+	static boolean isExpired(AbstractCouchbaseSessionConverter couchbaseSessionConverter,
+			Document<?> document) {
+
+		return couchbaseSessionConverter.isExpired(document);
 	}
 
 	@Nullable
-	static CouchbaseSession convertObjectToSession(
+	static CouchbaseSessionDelta convertToDelta(
 			AbstractCouchbaseSessionConverter couchbaseSessionConverter,
-			JsonObject session) {
+			CouchbaseSession session) {
+
+		return couchbaseSessionConverter.convertDelta(session);
+	}
+
+	/**
+	 * Converts a point in time into a document expiry. Couchbase reads expiries up to 30
+	 * days as relative to now, longer ones as a Unix time.
+	 *
+	 * @param epochMillis when the document should expire
+	 * @return the document expiry, always at least one second from now
+	 */
+	static int toDocumentExpiry(long epochMillis) {
+
+		long remainingSeconds = Math.max(1, TimeUnit.MILLISECONDS
+				.toSeconds(epochMillis - System.currentTimeMillis() + 999));
+		if (remainingSeconds <= MAX_RELATIVE_EXPIRY_SECONDS) {
+			return (int) remainingSeconds;
+		}
+		return (int) TimeUnit.MILLISECONDS.toSeconds(epochMillis + 999);
+	}
+
+	@Nullable
+	private static CouchbaseSession markPersisted(@Nullable CouchbaseSession session) {
 
-		return (CouchbaseSession) couchbaseSessionConverter.convert(session,
-				TypeDescriptor.valueOf(JsonObject.class),
-				TypeDescriptor.valueOf(CouchbaseSession.class));
+		if (session != null) {
+			session.markPersisted();
+		}
+		return session;
 	}
 }
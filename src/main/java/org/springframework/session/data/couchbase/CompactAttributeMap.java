@@ -0,0 +1,336 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * Map of session attributes tuned for the few attributes most sessions have. Up to
+ * {@link #MAX_COMPACT_SIZE} attributes are kept in a single array alternating names and
+ * values, which takes less than half the memory of a {@link HashMap} and its entries.
+ * Lookups scan the names, up to twice as slow as a {@code HashMap} at that size, see
+ * {@code CompactAttributeMapBenchmark}. Larger maps switch to a {@code HashMap}.
+ * <p>
+ * Keys and values can't be {@code null}. Not thread-safe, like the session holding it.
+ * Iterators are fail-fast: adding or removing an attribute other than through the
+ * iterator makes it throw {@link ConcurrentModificationException}, also when the map
+ * switched to a {@code HashMap} in between. Replacing the value of an attribute is not
+ * such a modification.
+ */
+final class CompactAttributeMap extends AbstractMap<String, Object> {
+
+	static final int MAX_COMPACT_SIZE = 16;
+	private static final int INITIAL_CAPACITY = 4;
+
+	/**
+	 * Names at even indexes, each followed by its value, {@code null} until the first
+	 * attribute is added and once the map switched to {@link #map}.
+	 */
+	@Nullable
+	private Object[] table;
+	private int size;
+	@Nullable
+	private HashMap<String, Object> map;
+
+	/**
+	 * Number of attributes added or removed, checked by the iterators.
+	 */
+	private int modCount;
+
+	@Nullable
+	private Set<Map.Entry<String, Object>> entrySet;
+
+	@Override
+	public int size() {
+		return this.map != null ? this.map.size() : this.size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return this.map != null ? this.map.containsKey(key) : indexOf(key) >= 0;
+	}
+
+	@Override
+	@Nullable
+	public Object get(Object key) {
+		if (this.map != null) {
+			return this.map.get(key);
+		}
+		int index = indexOf(key);
+		return index >= 0 ? this.table[index + 1] : null;
+	}
+
+	@Override
+	@Nullable
+	public Object put(String key, Object value) {
+		if (this.map != null) {
+			Object previous = this.map.put(key, value);
+			if (previous == null) {
+				this.modCount++;
+			}
+			return previous;
+		}
+		int index = indexOf(key);
+		if (index >= 0) {
+			Object previous = this.table[index + 1];
+			this.table[index + 1] = value;
+			return previous;
+		}
+		this.modCount++;
+		if (this.size == MAX_COMPACT_SIZE) {
+			this.map = new HashMap<>(this);
+			this.table = null;
+			this.size = 0;
+			return this.map.put(key, value);
+		}
+		if (this.table == null) {
+			this.table = new Object[2 * INITIAL_CAPACITY];
+		}
+		else if (this.table.length == 2 * this.size) {
+			this.table = Arrays.copyOf(this.table, 2 * this.table.length);
+		}
+		this.table[2 * this.size] = key;
+		this.table[2 * this.size + 1] = value;
+		this.size++;
+		return null;
+	}
+
+	@Override
+	@Nullable
+	public Object remove(Object key) {
+		if (this.map != null) {
+			Object previous = this.map.remove(key);
+			if (previous != null) {
+				this.modCount++;
+			}
+			return previous;
+		}
+		int index = indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		Object previous = this.table[index + 1];
+		this.modCount++;
+		removeAt(index);
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		if (size() > 0) {
+			this.modCount++;
+		}
+		this.table = null;
+		this.size = 0;
+		this.map = null;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if (this.entrySet == null) {
+			this.entrySet = new EntrySet();
+		}
+		return this.entrySet;
+	}
+
+	/**
+	 * Compares the hash codes first, which strings cache, so that names of the same
+	 * length aren't compared character by character.
+	 */
+	private int indexOf(Object key) {
+		if (key == null) {
+			return -1;
+		}
+		int hash = key.hashCode();
+		for (int i = 0; i < 2 * this.size; i += 2) {
+			Object name = this.table[i];
+			if (name == key || (name.hashCode() == hash && name.equals(key))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Moves the last attribute into the slot of the removed one.
+	 */
+	private void removeAt(int index) {
+		int last = 2 * (this.size - 1);
+		this.table[index] = this.table[last];
+		this.table[index + 1] = this.table[last + 1];
+		this.table[last] = null;
+		this.table[last + 1] = null;
+		this.size--;
+	}
+
+	private final class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+
+		@Override
+		public int size() {
+			return CompactAttributeMap.this.size();
+		}
+
+		@Override
+		public void clear() {
+			CompactAttributeMap.this.clear();
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, Object>> iterator() {
+			HashMap<String, Object> map = CompactAttributeMap.this.map;
+			return map != null ? new HashMapIterator(map.entrySet().iterator())
+					: new CompactIterator();
+		}
+	}
+
+	/**
+	 * Base of the iterators, failing once attributes were added or removed other than
+	 * through the iterator.
+	 */
+	private abstract class FailFastIterator
+			implements Iterator<Map.Entry<String, Object>> {
+
+		private int expectedModCount = CompactAttributeMap.this.modCount;
+
+		final void checkForComodification() {
+			if (CompactAttributeMap.this.modCount != this.expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+
+		final void removed() {
+			this.expectedModCount = ++CompactAttributeMap.this.modCount;
+		}
+	}
+
+	/**
+	 * Iterates the {@code HashMap} the map switched to, failing as well when the map is
+	 * cleared, which drops that {@code HashMap} rather than modifying it.
+	 */
+	private final class HashMapIterator extends FailFastIterator {
+
+		private final Iterator<Map.Entry<String, Object>> iterator;
+
+		private HashMapIterator(Iterator<Map.Entry<String, Object>> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.iterator.hasNext();
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			checkForComodification();
+			return this.iterator.next();
+		}
+
+		@Override
+		public void remove() {
+			checkForComodification();
+			this.iterator.remove();
+			removed();
+		}
+	}
+
+	/**
+	 * Iterates from the last attribute down, so that removing the current one, which
+	 * moves the last attribute into its slot, doesn't skip any.
+	 */
+	private final class CompactIterator extends FailFastIterator {
+
+		private int next = 2 * (CompactAttributeMap.this.size - 1);
+		private int current = -1;
+
+		@Override
+		public boolean hasNext() {
+			return this.next >= 0;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			checkForComodification();
+			if (this.next < 0) {
+				throw new NoSuchElementException();
+			}
+			this.current = this.next;
+			this.next -= 2;
+			return new CompactEntry(this.current);
+		}
+
+		@Override
+		public void remove() {
+			if (this.current < 0) {
+				throw new IllegalStateException();
+			}
+			checkForComodification();
+			removeAt(this.current);
+			removed();
+			this.current = -1;
+		}
+	}
+
+	private final class CompactEntry implements Map.Entry<String, Object> {
+
+		private final int index;
+
+		private CompactEntry(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String getKey() {
+			return (String) CompactAttributeMap.this.table[this.index];
+		}
+
+		@Override
+		public Object getValue() {
+			return CompactAttributeMap.this.table[this.index + 1];
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			Object previous = CompactAttributeMap.this.table[this.index + 1];
+			CompactAttributeMap.this.table[this.index + 1] = value;
+			return previous;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return getKey().equals(entry.getKey()) && getValue().equals(entry.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ getValue().hashCode();
+		}
+	}
+}
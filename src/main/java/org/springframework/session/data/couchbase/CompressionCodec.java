@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+/**
+ * Codec used to compress serialized session attributes.
+ *
+ * @see JdkCouchbaseSessionConverter#setCompression(CompressionCodec, int)
+ */
+public enum CompressionCodec {
+
+	/**
+	 * Attributes are stored as they are serialized.
+	 */
+	NONE(0),
+
+	/**
+	 * Deflate, as provided by the JDK. Gives the better ratio of the two codecs.
+	 */
+	DEFLATE(1),
+
+	/**
+	 * LZ4, which is considerably faster than Deflate at a lower ratio. Requires
+	 * {@code org.lz4:lz4-java} on the classpath.
+	 */
+	LZ4(2);
+
+	private final byte id;
+
+	CompressionCodec(int id) {
+		this.id = (byte) id;
+	}
+
+	byte getId() {
+		return this.id;
+	}
+
+	static CompressionCodec forId(byte id) {
+		for (CompressionCodec codec : values()) {
+			if (codec.id == id) {
+				return codec;
+			}
+		}
+		throw new IllegalStateException("Unknown compression codec " + id);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of the attributes compressed and decompressed with one
+ * {@link CompressionCodec}.
+ */
+public final class CompressionStatistics {
+
+	private final LongAdder compressions = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder compressionNanos = new LongAdder();
+	private final LongAdder decompressions = new LongAdder();
+	private final LongAdder decompressionNanos = new LongAdder();
+
+	void recordCompression(int uncompressedSize, int compressedSize, long nanos) {
+		this.compressions.increment();
+		this.uncompressedBytes.add(uncompressedSize);
+		this.compressedBytes.add(compressedSize);
+		this.compressionNanos.add(nanos);
+	}
+
+	void recordDecompression(long nanos) {
+		this.decompressions.increment();
+		this.decompressionNanos.add(nanos);
+	}
+
+	public long getCompressions() {
+		return this.compressions.sum();
+	}
+
+	public long getUncompressedBytes() {
+		return this.uncompressedBytes.sum();
+	}
+
+	public long getCompressedBytes() {
+		return this.compressedBytes.sum();
+	}
+
+	public long getCompressionNanos() {
+		return this.compressionNanos.sum();
+	}
+
+	public long getDecompressions() {
+		return this.decompressions.sum();
+	}
+
+	public long getDecompressionNanos() {
+		return this.decompressionNanos.sum();
+	}
+
+	/**
+	 * @return uncompressed size divided by compressed size of all attributes compressed
+	 *     so far, or 1 if there were none
+	 */
+	public double getCompressionRatio() {
+		long compressed = getCompressedBytes();
+		return compressed > 0 ? (double) getUncompressedBytes() / compressed : 1;
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionStatistics [compressions=" + getCompressions()
+				+ ", ratio=" + getCompressionRatio() + ", compressionNanos="
+				+ getCompressionNanos() + ", decompressions=" + getDecompressions()
+				+ ", decompressionNanos=" + getDecompressionNanos() + "]";
+	}
+}
@@ -19,51 +19,126 @@ package org.springframework.session.data.couchbase;
 import static org.springframework.session.data.couchbase.CBSessionUtils.*;
 import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.*;
 
+import java.time.Clock;
 import java.time.Duration;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.GenericApplicationListener;
+import org.springframework.context.event.GenericApplicationListenerAdapter;
+import org.springframework.context.event.SmartApplicationListener;
+import org.springframework.context.support.AbstractApplicationContext;
+import org.springframework.core.ResolvableType;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.lang.Nullable;
 import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.FlushMode;
+import org.springframework.session.SaveMode;
+import org.springframework.session.Session;
+import org.springframework.session.data.couchbase.CouchbaseSessionWriteBehind.PendingSession;
+import org.springframework.session.data.couchbase.CouchbaseSessionWriteBehind.SessionWrite;
 import org.springframework.session.events.SessionCreatedEvent;
 import org.springframework.session.events.SessionDeletedEvent;
 import org.springframework.session.events.SessionExpiredEvent;
 
+import com.couchbase.client.java.AsyncBucket;
 import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.bucket.BucketManager;
+import com.couchbase.client.java.document.ByteArrayDocument;
+import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.QueryExecutionException;
+import com.couchbase.client.java.error.subdoc.MultiMutationException;
+import com.couchbase.client.java.error.subdoc.PathNotFoundException;
+import com.couchbase.client.java.query.N1qlParams;
 import com.couchbase.client.java.query.N1qlQuery;
-import com.couchbase.client.java.query.N1qlQueryRow;
 import com.couchbase.client.java.query.Select;
+import com.couchbase.client.java.query.consistency.ScanConsistency;
 import com.couchbase.client.java.query.dsl.Expression;
-import com.couchbase.client.java.query.dsl.path.OffsetPath;
+import com.couchbase.client.java.query.dsl.Sort;
+import com.couchbase.client.java.query.dsl.functions.MetaFunctions;
+import com.couchbase.client.java.query.util.IndexInfo;
+import com.couchbase.client.java.subdoc.AsyncMutateInBuilder;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
 
 import lombok.Setter;
+import rx.Observable;
 
 /**
  * Session repository implementation which stores sessions in Couchbase. Uses
  * {@link AbstractCouchbaseSessionConverter} to transform session objects from/to native
- * Couchbase representation ({@code JsonDocument}). Repository is also responsible for
- * removing expired sessions from database. Cleanup is done every minute.
+ * Couchbase representation ({@code JsonDocument}, or {@code ByteArrayDocument} with
+ * {@link SessionDocumentFormat#BINARY}). Repository is also responsible for
+ * removing expired sessions from database: expired sessions are removed when they are
+ * requested, and with {@link CouchbaseSessionExpirations} every minute.
  *
  * @author Denis Rosa
  */
 
 public class CouchbaseOperationsSessionRepository
 		implements FindByIndexNameSessionRepository<CouchbaseSession>,
-		ApplicationEventPublisherAware, InitializingBean {
+		ApplicationEventPublisherAware, InitializingBean, DisposableBean {
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(CouchbaseOperationsSessionRepository.class);
+
+	/**
+	 * Virtual extended attribute holding the document metadata, looked up to read the
+	 * CAS of a document without fetching it.
+	 */
+	private static final String DOCUMENT_XATTR = "$document";
+	/**
+	 * Upper bound of the random delay before retrying to save a session which was
+	 * changed concurrently.
+	 */
+	private static final long MAX_SAVE_BACKOFF_MILLIS = 50;
+	/**
+	 * Index on the principal of the session documents, which covers the query for the
+	 * ids of the sessions of a principal.
+	 */
+	private static final String PRINCIPAL_QUERY_INDEX = "spring_sessions_principal_index";
+	private static final String ATTRIBUTE_INDEX_PREFIX = "spring_sessions_attr_";
+
 	private final Bucket bucket;
 
 	@Setter
@@ -73,141 +148,1680 @@ public class CouchbaseOperationsSessionRepository
 	@Setter
 	private String valueType = DEFAULT_VALUE_TYPE;
 
+	/**
+	 * Sessions which only had their last accessed time changed are not written again
+	 * until the stored last accessed time is at least this old. {@code 0} writes every
+	 * access.
+	 */
+	@Setter
+	private int lastAccessedWriteThresholdInSeconds = DEFAULT_LAST_ACCESSED_WRITE_THRESHOLD;
+
+	@Setter
+	private SessionDocumentFormat documentFormat = SessionDocumentFormat.JSON;
+
+	/**
+	 * When sessions are written: when they are saved, or right after every change.
+	 */
+	@Setter
+	private FlushMode flushMode = FlushMode.ON_SAVE;
+
+	/**
+	 * Which attributes are written when a session is saved.
+	 */
+	@Setter
+	private SaveMode saveMode = SaveMode.ON_SET_ATTRIBUTE;
+
+	/**
+	 * How many times a session written as a whole is saved before giving up, when the
+	 * stored session keeps being changed concurrently.
+	 */
+	@Setter
+	private int maxSaveAttempts = DEFAULT_MAX_SAVE_ATTEMPTS;
+
 	@Setter
 	private AbstractCouchbaseSessionConverter couchbaseSessionConverter = new JdkCouchbaseSessionConverter(
 			DEFAULT_NAME_TYPE, DEFAULT_VALUE_TYPE, DEFAULT_INACTIVE_INTERVAL,
 			DEFAULT_KEEP_STRING_AS_LITERAL);
 
+	/**
+	 * Cache of the sessions read by this repository, {@code null} to read every session
+	 * from Couchbase.
+	 */
+	@Setter
+	@Nullable
+	private CouchbaseSessionCache sessionCache;
+
+	/**
+	 * Whether concurrent lookups of the same session share a single fetch and decode.
+	 */
+	@Setter
+	private boolean coalesceConcurrentReads = true;
+
+	private final ConcurrentMap<String, CompletableFuture<LoadedSession>> inFlightReads = new ConcurrentHashMap<>();
+
+	/**
+	 * Queue through which sessions are written in the background, {@code null} to write
+	 * sessions before {@link #save(CouchbaseSession)} returns.
+	 */
+	@Setter
+	@Nullable
+	private CouchbaseSessionWriteBehind writeBehind;
+
+	/**
+	 * Index of the sessions by their expiration time, {@code null} to only remove
+	 * expired sessions when they are requested.
+	 */
+	@Setter
+	@Nullable
+	private CouchbaseSessionExpirations expirations;
+
+	/**
+	 * Lookup documents from principal names to their sessions, {@code null} to find the
+	 * sessions of a principal through a N1QL query.
+	 */
+	@Setter
+	@Nullable
+	private CouchbasePrincipalIndex principalIndex;
+
+	/**
+	 * Attributes whose value is also written as a top-level field of the session
+	 * documents and indexed, so that sessions can be found by their value.
+	 */
+	@Setter
+	private List<String> indexedAttributes = Collections.emptyList();
+
+	/**
+	 * Number of sessions read per query when streaming the sessions found by an index.
+	 */
+	@Setter
+	private int queryPageSize = DEFAULT_QUERY_PAGE_SIZE;
+
+	/**
+	 * Number of threads decoding the sessions of a page in parallel, {@code 1} to
+	 * decode them on the calling thread.
+	 */
+	@Setter
+	private int decodeParallelism = DEFAULT_DECODE_PARALLELISM;
+
+	@Nullable
+	private ExecutorService decodeExecutor;
+
+	/**
+	 * Maximum number of requests in flight during {@link #findAllById(Collection)} and
+	 * {@link #deleteAllById(Collection)}.
+	 */
+	@Setter
+	private int bulkConcurrency = DEFAULT_BULK_CONCURRENCY;
+
+	/**
+	 * Whether events nobody listens to are skipped, which spares decoding the sessions
+	 * they are about and lets {@link #deleteById(String)} remove documents without
+	 * reading them. Listeners are looked up in the application context and its parents,
+	 * including listener beans it only knows by name. Listeners added directly to the
+	 * event multicaster can't be seen, so only enable this if there are none.
+	 */
+	@Setter
+	private boolean skipUnobservedEvents = DEFAULT_SKIP_UNOBSERVED_EVENTS;
+
+	/**
+	 * Types of listeners which don't count when deciding whether events need to be
+	 * published, e.g. the adapter forwarding session events to
+	 * {@code HttpSessionListener}s when there is none.
+	 */
+	@Setter
+	private Set<Class<?>> inactiveListenerTypes = Collections.emptySet();
+
+	/**
+	 * Generates the ids of new sessions and of sessions whose id is changed.
+	 */
+	@Setter
+	private SessionIdGenerator sessionIdGenerator = CouchbaseSession.DEFAULT_ID_GENERATOR;
+
+	/**
+	 * Clock the expiry of sessions is checked against.
+	 */
+	@Setter
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * Threads on which session events are published, {@code null} to publish them on the
+	 * thread which raised them.
+	 */
+	@Setter
+	@Nullable
+	private CouchbaseSessionEventExecutor eventExecutor;
+
 	private ApplicationEventPublisher eventPublisher;
 
+	private final ConcurrentMap<Class<?>, Boolean> listenedEventTypes = new ConcurrentHashMap<>();
+
+	private volatile int listenerCount = -1;
+
 	public CouchbaseOperationsSessionRepository(Bucket bucket) {
 		this.bucket = bucket;
 	}
 
 	@Override
 	public CouchbaseSession createSession() {
-		CouchbaseSession session = new CouchbaseSession();
+		CouchbaseSession session = new CouchbaseSession(
+				this.sessionIdGenerator.generateId(), DEFAULT_INACTIVE_INTERVAL);
 		if (this.maxInactiveIntervalInSeconds != null) {
 			session.setMaxInactiveInterval(
 					Duration.ofSeconds(this.maxInactiveIntervalInSeconds));
 		}
-		publishEvent(new SessionCreatedEvent(this, session));
+		prepare(session);
+		if (this.flushMode == FlushMode.IMMEDIATE) {
+			save(session);
+		}
+		publishEvent(SessionCreatedEvent.class, session, SessionCreatedEvent::new);
 		return session;
 	}
 
-	@Override
-	public void save(CouchbaseSession session) {
-		this.bucket.upsert(Assert.requireNonNull(
-				convertToJsonDoc(this.couchbaseSessionConverter, session),
-				"convertToJsonDoc must not be null!"));
+	/**
+	 * Applies the save and flush modes to a session handed out by this repository.
+	 */
+	private CouchbaseSession prepare(CouchbaseSession session) {
+		session.setSaveMode(this.saveMode);
+		session.setIdGenerator(this.sessionIdGenerator);
+		session.setClock(this.clock);
+		session.setFlushAction(this.flushMode == FlushMode.IMMEDIATE ? this::save : null);
+		return session;
 	}
 
+	/**
+	 * Saves the session. Sessions which are already stored are updated through a
+	 * sub-document mutation containing only their changes, new sessions and sessions
+	 * whose changes can't be expressed as a partial update are written as a whole. A
+	 * session which was only accessed is written only if its stored last accessed time
+	 * is older than {@code lastAccessedWriteThresholdInSeconds}.
+	 *
+	 * @param session the session to save
+	 */
 	@Override
-	@Nullable
-	public CouchbaseSession findById(String id) {
+	public void save(CouchbaseSession session) {
 
-		JsonDocument sessionWrapper = findSession(id);
+		session.prepareSave();
+		if (session.isAccessedOnly()
+				&& session.isRecentlyAccessed(this.lastAccessedWriteThresholdInSeconds)) {
+			return;
+		}
 
-		if (sessionWrapper == null) {
-			return null;
+		if (this.expirations != null) {
+			this.expirations.index(session);
+		}
+		if (this.principalIndex != null) {
+			indexPrincipal(session);
 		}
 
-		CouchbaseSession session = convertToSession(this.couchbaseSessionConverter,
-				sessionWrapper);
-		if (session != null && session.isExpired()) {
-			publishEvent(new SessionExpiredEvent(this, session));
-			deleteById(id);
+		CouchbaseSessionDelta delta = session.isStored()
+				&& this.documentFormat == SessionDocumentFormat.JSON
+				? convertToDelta(this.couchbaseSessionConverter, session)
+				: null;
+		if (delta != null && delta.size() > CouchbaseSessionDelta.MAX_OPERATIONS) {
+			delta = null;
+		}
 
-			return null;
+		if (this.writeBehind != null) {
+			queueWrite(session, delta);
+			return;
 		}
 
-		return session;
+		boolean savedDelta = delta != null && saveDelta(delta, session);
+		if (!savedDelta) {
+			saveDocument(session);
+		}
+
+		if (this.sessionCache != null && (!savedDelta || !session.isAccessedOnly())) {
+			this.sessionCache.invalidate(session.getId());
+			this.sessionCache.invalidate(session.getOriginalId());
+		}
+
+		session.markPersisted();
+	}
+
+	/**
+	 * Updates the principal index if the principal or the id of the session changed,
+	 * and extends the expiry of the document of the principal when the session outlives
+	 * it. The index is updated before the session is written, so that the lookup of a
+	 * principal finds all its stored sessions.
+	 */
+	private void indexPrincipal(CouchbaseSession session) {
+
+		if (session.isStored()
+				&& !this.couchbaseSessionConverter.isPrincipalChanged(session)) {
+			String principal = session.getStoredPrincipal();
+			if (principal != null && CouchbasePrincipalIndex.isExpiryExtended(session)) {
+				this.principalIndex.add(principal, session);
+			}
+			return;
+		}
+
+		String previous = session.getStoredPrincipal();
+		String principal = this.couchbaseSessionConverter.extractPrincipal(session);
+		if (previous != null && (!previous.equals(principal) || !session.isStored())) {
+			this.principalIndex.remove(previous, session.getOriginalId());
+		}
+		if (principal != null && (!principal.equals(previous) || !session.isStored())) {
+			this.principalIndex.add(principal, session);
+		}
+		session.setStoredPrincipal(principal);
+	}
+
+	private void unindexPrincipal(CouchbaseSession session) {
+		if (this.principalIndex != null && session.getStoredPrincipal() != null) {
+			this.principalIndex.remove(session.getStoredPrincipal(), session.getId());
+		}
 	}
 
 	/**
-	 * Currently this repository allows only querying against
-	 * {@code PRINCIPAL_NAME_INDEX_NAME}.
+	 * Applies the delta. A session which was only touched is written only if the
+	 * document didn't change since it was read, so that its cached copy can be kept. A
+	 * session whose document was removed in the meantime is not written.
 	 *
-	 * @param indexName the name if the index (i.e.
-	 *     {@link FindByIndexNameSessionRepository#PRINCIPAL_NAME_INDEX_NAME})
-	 * @param indexValue the value of the index to search for.
-	 * @return sessions map
+	 * @return {@code false} if the whole document has to be written instead
 	 */
-	@Override
-	public Map<String, CouchbaseSession> findByIndexNameAndIndexValue(String indexName,
-			String indexValue) {
+	private boolean saveDelta(CouchbaseSessionDelta delta, CouchbaseSession session) {
+
+		long previousCas = session.getCas();
+		boolean cachedTouch = this.sessionCache != null && session.isAccessedOnly()
+				&& previousCas != 0;
+
+		MutateInBuilder mutation = this.bucket.mutateIn(delta.getId())
+				.withExpiry(delta.getExpiry());
+		if (cachedTouch) {
+			mutation.withCas(previousCas);
+		}
+		delta.getUpserts()
+				.forEach((path, value) -> mutation.upsert(path, value,
+						SubdocOptionsBuilder.builder().createPath(true)));
+		delta.getRemovals().forEach(mutation::remove);
 
-		return getQuery(this.bucket, indexValue).stream()
-				.map(row -> convertObjectToSession(this.couchbaseSessionConverter, row))
-				.collect(Collectors.toMap(CouchbaseSession::getId,
-						mapSession -> mapSession));
+		try {
+			session.setCas(mutation.execute().cas());
+			if (cachedTouch) {
+				this.sessionCache.touch(delta.getId(), previousCas, session.getCas(),
+						session.getLastAccessedTimeMillis());
+			}
+			return true;
+		}
+		catch (CASMismatchException ex) {
+			// changed elsewhere since it was read, the cached copy is stale
+			this.sessionCache.invalidate(delta.getId());
+			session.setCas(0);
+			return saveDelta(delta, session);
+		}
+		catch (DocumentDoesNotExistException ex) {
+			sessionGone(delta.getId());
+			return true;
+		}
+		catch (MultiMutationException ex) {
+			logger.debug("Partial update of session " + delta.getId()
+					+ " failed, writing the whole document", ex);
+			return false;
+		}
 	}
 
-	@Override
-	public void deleteById(String id) {
+	private void saveDocument(CouchbaseSession session) {
 
-		Optional.ofNullable(findSession(id)).ifPresent(document -> {
+		if (session.isStored() && session.getCas() != 0) {
+			replaceDocument(session);
+			return;
+		}
+
+		session.setCas(this.bucket.upsert(convertToDocument(session)).cas());
 
-			CouchbaseSession session = convertToSession(this.couchbaseSessionConverter,
-					document);
-			if (session != null) {
-				publishEvent(new SessionDeletedEvent(this, session));
+		if (!session.isNew() && !session.getId().equals(session.getOriginalId())) {
+			try {
+				this.bucket.remove(session.getOriginalId());
 			}
+			catch (DocumentDoesNotExistException ex) {
+				logger.debug("Session " + session.getOriginalId()
+						+ " was already removed after changing its id");
+			}
+		}
+	}
 
-			this.bucket.remove(document);
-		});
+	/**
+	 * Replaces the stored document provided it didn't change since the session was read.
+	 * Otherwise the stored session is read again, the attributes changed or removed by
+	 * this session are applied on top of it, and the replace is retried after a short
+	 * backoff. If the document was removed in the meantime, e.g. by a logout on another
+	 * node or because it expired, the session is not written.
+	 */
+	private void replaceDocument(CouchbaseSession session) {
+
+		for (int attempt = 1;; attempt++) {
+			Document<?> document = convertToDocument(session);
+			try {
+				session.setCas(this.bucket.replace(withCas(document, session.getCas()))
+						.cas());
+				return;
+			}
+			catch (DocumentDoesNotExistException ex) {
+				sessionGone(session.getId());
+				return;
+			}
+			catch (CASMismatchException ex) {
+				if (attempt >= this.maxSaveAttempts) {
+					throw new OptimisticLockingFailureException("Session "
+							+ session.getId() + " kept changing while it was saved", ex);
+				}
+			}
+
+			backOff(attempt);
+			Document<?> stored = findSession(session.getId());
+			CouchbaseSession storedSession = stored != null ? convertDocument(stored)
+					: null;
+			if (storedSession == null) {
+				sessionGone(session.getId());
+				return;
+			}
+			session.merge(storedSession);
+		}
 	}
 
-	@Override
-	public void afterPropertiesSet() {
-		boolean created = bucket.bucketManager().createN1qlIndex("spring_sessions_index",
-				Arrays.asList(this.nameType,
-						AbstractCouchbaseSessionConverter.PRINCIPAL_FIELD_NAME),
-				Expression.x(nameType).eq(valueType), true, false);
+	/**
+	 * Gives up saving a session whose document was removed while it was in use.
+	 */
+	private void sessionGone(String id) {
+		logger.debug("Session " + id + " was removed while it was in use, not saving it");
+		if (this.sessionCache != null) {
+			this.sessionCache.invalidate(id);
+		}
+	}
 
-		if (created) {
-			logger.warn(
-					"The index 'spring_sessions_index' does not exist, it will be created automatically");
+	private static void backOff(int attempt) {
+		long maxDelay = Math.min(MAX_SAVE_BACKOFF_MILLIS, 1L << attempt);
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
 		}
-		else {
-			logger.info(
-					"The index 'spring_sessions_index' already exist. Whenever you change the document type attribute "
-							+ " or the the document type value, this index must be recreated.");
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new OptimisticLockingFailureException(
+					"Interrupted while retrying to save a session", ex);
 		}
 	}
 
-	@Nullable
-	private JsonDocument findSession(String id) {
-		return this.bucket.get(id);
+	private Document<?> convertToDocument(CouchbaseSession session) {
+		return this.documentFormat == SessionDocumentFormat.BINARY
+				? convertToBinaryDocument(session)
+				: convertToJsonDocument(session);
 	}
 
-	@Override
-	public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
-		this.eventPublisher = eventPublisher;
+	private static Document<?> withCas(Document<?> document, long cas) {
+		if (document instanceof ByteArrayDocument) {
+			ByteArrayDocument binary = (ByteArrayDocument) document;
+			return ByteArrayDocument.create(binary.id(), binary.expiry(),
+					binary.content(), cas);
+		}
+		JsonDocument json = (JsonDocument) document;
+		return JsonDocument.create(json.id(), json.expiry(), json.content(), cas);
 	}
 
-	private void publishEvent(ApplicationEvent event) {
-		try {
-			this.eventPublisher.publishEvent(event);
+	private ByteArrayDocument convertToBinaryDocument(CouchbaseSession session) {
+		return Assert.requireNonNull(
+				convertToBinaryDoc(this.couchbaseSessionConverter, session),
+				"convertToBinaryDoc must not be null!");
+	}
+
+	private JsonDocument convertToJsonDocument(CouchbaseSession session) {
+		return Assert.requireNonNull(
+				convertToJsonDoc(this.couchbaseSessionConverter, session),
+				"convertToJsonDoc must not be null!");
+	}
+
+	/**
+	 * Hands the changes of the session over to the write-behind queue. They are
+	 * converted right away, so later changes of the session are not written. Partial
+	 * updates come with the whole document, written if they fail, so that the flusher
+	 * never reads the session while the request may still change it.
+	 */
+	private void queueWrite(CouchbaseSession session,
+			@Nullable CouchbaseSessionDelta delta) {
+
+		SessionWrite write = delta != null
+				? SessionWrite.delta(delta, convertToJsonDocument(session))
+				: SessionWrite.document(convertToDocument(session), session.isStored());
+		String removedId = session.isNew()
+				|| session.getId().equals(session.getOriginalId()) ? null
+						: session.getOriginalId();
+
+		if (this.sessionCache != null) {
+			this.sessionCache.invalidate(session.getId());
+			this.sessionCache.invalidate(session.getOriginalId());
 		}
-		catch (Throwable ex) {
-			logger.error("Error publishing " + event + ".", ex);
+		session.markPersisted();
+
+		this.writeBehind.submit(write, removedId);
+	}
+
+	/**
+	 * Writes a batch of queued sessions through the asynchronous API, all sessions in
+	 * parallel and the writes of each session one after the other.
+	 *
+	 * @return the number of sessions which couldn't be written
+	 */
+	private int writeSessions(List<PendingSession> sessions) {
+
+		AtomicInteger failed = new AtomicInteger();
+		Observable.from(sessions)
+				.flatMap(session -> Observable.from(session.getWrites())
+						.concatMap(this::writeAsync)
+						.concatWith(Observable.from(session.getRemovedIds())
+								.concatMap(this::removeAsync))
+						.onErrorResumeNext(ex -> {
+							logger.error("Failed to write session " + session.getId(),
+									ex);
+							failed.incrementAndGet();
+							return Observable.empty();
+						}))
+				.toBlocking().lastOrDefault(null);
+		return failed.get();
+	}
+
+	private Observable<Long> writeAsync(SessionWrite write) {
+
+		AsyncBucket bucket = this.bucket.async();
+		CouchbaseSessionDelta delta = write.getDelta();
+		if (delta == null && !write.isStored()) {
+			return bucket.upsert(write.getDocument()).map(Document::cas);
+		}
+		if (delta == null) {
+			return replaceAsync(write.getDocument());
 		}
+
+		AsyncMutateInBuilder mutation = bucket.mutateIn(delta.getId())
+				.withExpiry(delta.getExpiry());
+		delta.getUpserts()
+				.forEach((path, value) -> mutation.upsert(path, value,
+						SubdocOptionsBuilder.builder().createPath(true)));
+		delta.getRemovals().forEach(mutation::remove);
+
+		return mutation.execute().map(DocumentFragment::cas).onErrorResumeNext(ex -> {
+			if (ex instanceof DocumentDoesNotExistException) {
+				// removed since it was saved, e.g. expired or deleted on another node
+				logger.debug("Session " + delta.getId()
+						+ " was removed, dropping its queued changes");
+				return Observable.empty();
+			}
+			if (ex instanceof MultiMutationException) {
+				logger.debug("Partial update of session " + delta.getId()
+						+ " failed, writing the whole document", ex);
+				return replaceAsync(write.getFallback());
+			}
+			return Observable.error(ex);
+		});
+	}
+
+	/**
+	 * Replaces the document of a stored session, unless the session was removed since
+	 * it was saved, e.g. expired or deleted on another node.
+	 */
+	private Observable<Long> replaceAsync(Document<?> document) {
+		return this.bucket.async().replace(document).map(Document::cas)
+				.onErrorResumeNext(ex -> ex instanceof DocumentDoesNotExistException
+						? Observable.empty()
+						: Observable.error(ex));
+	}
+
+	private Observable<Long> removeAsync(String id) {
+		return this.bucket.async().remove(id).map(Document::cas)
+				.onErrorResumeNext(ex -> ex instanceof DocumentDoesNotExistException
+						? Observable.empty()
+						: Observable.error(ex));
 	}
 
+	@Override
 	@Nullable
-	protected List<JsonObject> getQuery(Bucket bucket, String indexValue) {
+	public CouchbaseSession findById(String id) {
+
+		if (this.writeBehind != null) {
+			this.writeBehind.flush(id);
+		}
+
+		CouchbaseSession session = this.coalesceConcurrentReads ? readShared(id)
+				: readSession(id).newSession();
+
+		return session != null ? prepare(session) : null;
+	}
+
+	/**
+	 * Finds many sessions at once, fetching them through the asynchronous API with at
+	 * most {@code bulkConcurrency} requests in flight. Expired sessions are removed and
+	 * a {@link SessionExpiredEvent} is published for each of them, as with
+	 * {@link #findById(String)}.
+	 *
+	 * @param ids the ids of the sessions
+	 * @return the sessions found by id, and the failure of every id which couldn't be
+	 *     read
+	 */
+	public CouchbaseSessionBulkResult findAllById(Collection<String> ids) {
 
-		Expression expForType = Expression
-				.x(AbstractCouchbaseSessionConverter.PRINCIPAL_FIELD_NAME)
-				.eq(Expression.x(indexValue));
-		OffsetPath statement = Select.select("  meta().id as id, *")
-				.from(Expression.i(bucket.name())).where(expForType);
+		Set<String> uniqueIds = new LinkedHashSet<>(ids);
+		if (this.writeBehind != null) {
+			uniqueIds.forEach(this.writeBehind::flush);
+		}
+
+		Map<String, Throwable> errors = new ConcurrentHashMap<>();
+		Map<String, Document<?>> documents = Observable.from(uniqueIds)
+				.flatMap(id -> findLiveSessionAsync(id).onErrorResumeNext(ex -> {
+					errors.put(id, ex);
+					return Observable.empty();
+				}), this.bulkConcurrency)
+				.<String, Document<?>>toMap(document -> document.id(),
+						document -> document)
+				.toBlocking().single();
+
+		Map<String, CouchbaseSession> sessions = new LinkedHashMap<>();
+		for (String id : uniqueIds) {
+			Document<?> document = documents.get(id);
+			if (document == null) {
+				continue;
+			}
+			try {
+				if (isExpired(this.couchbaseSessionConverter, document)) {
+					if (this.sessionCache != null) {
+						this.sessionCache.invalidate(id);
+					}
+					sessionRemoved(document, SessionExpiredEvent.class,
+							SessionExpiredEvent::new);
+					continue;
+				}
+				CouchbaseSession session = convertDocument(document);
+				if (session == null) {
+					continue;
+				}
+				if (this.sessionCache != null) {
+					this.sessionCache.put(session);
+				}
+				sessions.put(id, prepare(session));
+			}
+			catch (RuntimeException ex) {
+				errors.put(id, ex);
+			}
+		}
+		return new CouchbaseSessionBulkResult(sessions, errors);
+	}
+
+	/**
+	 * Fetches the document of a session, removing it if it expired. An expired document
+	 * is emitted once removed, and read again if it changed in the meantime.
+	 */
+	private Observable<Document<?>> findLiveSessionAsync(String id) {
+		return findSessionAsync(id).flatMap(document -> {
+			if (!isExpired(this.couchbaseSessionConverter, document)) {
+				return Observable.<Document<?>>just(document);
+			}
+			return this.bucket.async().remove(document).<Document<?>>map(removed -> document)
+					.onErrorResumeNext(ex -> ex instanceof CASMismatchException
+							? findLiveSessionAsync(id)
+							: ex instanceof DocumentDoesNotExistException
+									? Observable.empty()
+									: Observable.error(ex));
+		});
+	}
+
+	/**
+	 * Finds sessions by {@code PRINCIPAL_NAME_INDEX_NAME} or by one of the
+	 * {@code indexedAttributes}. Without a {@link CouchbasePrincipalIndex}, only sessions
+	 * stored as JSON documents can be found. The sessions are read page by page, see
+	 * {@link #streamByIndexNameAndIndexValue(String, String)}.
+	 *
+	 * @param indexName the name if the index (i.e.
+	 *     {@link FindByIndexNameSessionRepository#PRINCIPAL_NAME_INDEX_NAME} or an
+	 *     indexed attribute)
+	 * @param indexValue the value of the index to search for.
+	 * @return sessions map, empty for other index names
+	 */
+	@Override
+	public Map<String, CouchbaseSession> findByIndexNameAndIndexValue(String indexName,
+			String indexValue) {
+
+		Map<String, CouchbaseSession> sessions = new HashMap<>();
+		streamByIndexNameAndIndexValue(indexName, indexValue)
+				.forEach(session -> sessions.put(session.getId(), session));
+		return sessions;
+	}
 
-		N1qlQuery q = N1qlQuery.simple(statement);
-		List<N1qlQueryRow> list = bucket.query(q).allRows();
+	/**
+	 * Streams the sessions found by an index, reading them lazily in pages of
+	 * {@code queryPageSize} sessions, so that only one page is held at a time.
+	 *
+	 * @param indexName the name of the index, see
+	 *     {@link #findByIndexNameAndIndexValue(String, String)}
+	 * @param indexValue the value of the index to search for
+	 * @return the sessions, ordered by id
+	 */
+	public Stream<CouchbaseSession> streamByIndexNameAndIndexValue(String indexName,
+			String indexValue) {
 
-		return list.stream().map(e -> e.value()).collect(Collectors.toList());
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+				new PagedSessions(indexName, indexValue),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
 
+	/**
+	 * Reads one page of the sessions found by an index. Pages are ordered by session id
+	 * and each one starts after the last id of the previous one, so that no page is
+	 * skipped over on the server.
+	 *
+	 * @param indexName the name of the index, see
+	 *     {@link #findByIndexNameAndIndexValue(String, String)}
+	 * @param indexValue the value of the index to search for
+	 * @param pageKey the {@link CouchbaseSessionPage#getNextPageKey() key} of the
+	 *     previous page, {@code null} for the first page
+	 * @param pageSize the maximum number of sessions of the page
+	 * @return the page
+	 */
+	public CouchbaseSessionPage findPageByIndexNameAndIndexValue(String indexName,
+			String indexValue, @Nullable String pageKey, int pageSize) {
+
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("pageSize must be positive");
+		}
+
+		boolean principal = PRINCIPAL_NAME_INDEX_NAME.equals(indexName);
+		if (principal && this.principalIndex != null) {
+			return findIndexedPage(indexValue, pageKey, pageSize);
+		}
+		if (!principal && !this.indexedAttributes.contains(indexName)) {
+			return new CouchbaseSessionPage(Collections.emptyList(), null);
+		}
+
+		if (this.documentFormat != SessionDocumentFormat.JSON) {
+			throw new UnsupportedOperationException(
+					"Sessions stored as " + this.documentFormat
+							+ " documents can't be queried by index");
+		}
+
+		return queryPage(principal ? AbstractCouchbaseSessionConverter.PRINCIPAL_FIELD_NAME
+				: AbstractCouchbaseSessionConverter.indexedField(indexName),
+				indexValue, pageKey, pageSize);
+	}
+
+	/**
+	 * Finds a page of the sessions having the value in the field through a prepared
+	 * N1QL query, which only reads their ids from the index on the field. The sessions
+	 * are then fetched through the key-value API.
+	 */
+	private CouchbaseSessionPage queryPage(String field, String value,
+			@Nullable String pageKey, int pageSize) {
+
+		N1qlQuery query = N1qlQuery.parameterized(indexQuery(field),
+				JsonObject.create().put("value", value)
+						.put("after", pageKey != null ? pageKey : "")
+						.put("limit", pageSize),
+				N1qlParams.build().adhoc(false));
+
+		List<String> ids = this.bucket.async().query(query)
+				.flatMap(result -> result.rows().concatWith(result.errors()
+						.flatMap(error -> Observable.error(new QueryExecutionException(
+								"Querying sessions by " + field + " failed", error)))))
+				.map(row -> row.value().getString("id")).toList().toBlocking()
+				.single();
+
+		Map<String, Document<?>> documents = fetchSessions(ids);
+		List<Document<?>> sessions = new ArrayList<>();
+		for (String id : ids) {
+			Document<?> document = documents.get(id);
+			if (document != null && !isExpired(this.couchbaseSessionConverter, document)) {
+				sessions.add(document);
+			}
+		}
+
+		return new CouchbaseSessionPage(decodeSessions(sessions),
+				ids.size() == pageSize ? ids.get(ids.size() - 1) : null);
+	}
+
+	/**
+	 * @return the statement selecting a page of the ids of the sessions having a value
+	 *     in the field, with a predicate matching the one of the index on the field
+	 */
+	private String indexQuery(String field) {
+		Expression id = MetaFunctions.meta(Expression.i(this.bucket.name())).get("id");
+		return Select.select(id.as("id")).from(Expression.i(this.bucket.name()))
+				.where(indexCondition()
+						.and(Expression.i(field).eq(Expression.x("$value")))
+						.and(id.gt(Expression.x("$after"))))
+				.orderBy(Sort.asc(id)) + " LIMIT $limit";
+	}
+
+	private Expression indexCondition() {
+		return Expression.i(this.nameType).eq(Expression.s(this.valueType));
+	}
+
+	/**
+	 * Looks the sessions of the principal up in the principal index and fetches a page
+	 * of them in parallel. Ids of sessions which don't exist anymore or expired are
+	 * pruned from the index.
+	 */
+	private CouchbaseSessionPage findIndexedPage(String principal,
+			@Nullable String pageKey, int pageSize) {
+
+		TreeSet<String> indexed = new TreeSet<>(this.principalIndex.find(principal));
+		List<String> ids = (pageKey != null ? indexed.tailSet(pageKey, false) : indexed)
+				.stream().limit(pageSize).collect(Collectors.toList());
+		if (ids.isEmpty()) {
+			return new CouchbaseSessionPage(Collections.emptyList(), null);
+		}
+		if (this.writeBehind != null) {
+			ids.forEach(this.writeBehind::flush);
+		}
+
+		Map<String, Document<?>> documents = fetchSessions(ids);
+		List<Document<?>> live = new ArrayList<>();
+		Set<String> stale = new HashSet<>();
+		for (String id : ids) {
+			Document<?> document = documents.get(id);
+			if (document == null) {
+				// possibly still queued for write-behind on another node
+				if (this.writeBehind == null) {
+					stale.add(id);
+				}
+			}
+			else if (isExpired(this.couchbaseSessionConverter, document)) {
+				stale.add(id);
+			}
+			else {
+				live.add(document);
+			}
+		}
+
+		List<CouchbaseSession> sessions = decodeSessions(live);
+		sessions.removeIf(session -> session.getStoredPrincipal() != null
+				&& !session.getStoredPrincipal().equals(principal));
+
+		if (!stale.isEmpty()) {
+			this.principalIndex.prune(principal, stale);
+		}
+		return new CouchbaseSessionPage(sessions,
+				ids.size() == pageSize ? ids.get(ids.size() - 1) : null);
+	}
+
+	/**
+	 * Fetches the documents of the sessions in parallel.
+	 *
+	 * @return the documents which exist, by id
+	 */
+	private Map<String, Document<?>> fetchSessions(List<String> ids) {
+		if (ids.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		return Observable.from(ids).flatMap(this::findSessionAsync)
+				.<String, Document<?>>toMap(document -> document.id(),
+						document -> document)
+				.toBlocking().single();
+	}
+
+	/**
+	 * Converts the documents into sessions, on the decode pool if there is one, keeping
+	 * their order.
+	 */
+	private List<CouchbaseSession> decodeSessions(List<Document<?>> documents) {
+
+		List<CouchbaseSession> sessions = new ArrayList<>(documents.size());
+		if (this.decodeExecutor == null || documents.size() < 2) {
+			for (Document<?> document : documents) {
+				CouchbaseSession session = convertDocument(document);
+				if (session != null) {
+					sessions.add(prepare(session));
+				}
+			}
+			return sessions;
+		}
+
+		List<CompletableFuture<CouchbaseSession>> decoded = new ArrayList<>(
+				documents.size());
+		for (Document<?> document : documents) {
+			decoded.add(CompletableFuture.supplyAsync(() -> convertDocument(document),
+					this.decodeExecutor));
+		}
+		for (CompletableFuture<CouchbaseSession> session : decoded) {
+			try {
+				CouchbaseSession decodedSession = session.join();
+				if (decodedSession != null) {
+					sessions.add(prepare(decodedSession));
+				}
+			}
+			catch (CompletionException ex) {
+				throw ex.getCause() instanceof RuntimeException
+						? (RuntimeException) ex.getCause()
+						: ex;
+			}
+		}
+		return sessions;
+	}
+
+	/**
+	 * Iterates over the sessions found by an index, reading the next page once the
+	 * sessions of the current one have been handed out.
+	 */
+	private final class PagedSessions implements Iterator<CouchbaseSession> {
+
+		private final String indexName;
+		private final String indexValue;
+		@Nullable
+		private CouchbaseSessionPage page;
+		private Iterator<CouchbaseSession> sessions = Collections.emptyIterator();
+
+		PagedSessions(String indexName, String indexValue) {
+			this.indexName = indexName;
+			this.indexValue = indexValue;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!this.sessions.hasNext()
+					&& (this.page == null || this.page.hasNextPage())) {
+				this.page = findPageByIndexNameAndIndexValue(this.indexName,
+						this.indexValue,
+						this.page != null ? this.page.getNextPageKey() : null,
+						CouchbaseOperationsSessionRepository.this.queryPageSize);
+				this.sessions = this.page.getSessions().iterator();
+			}
+			return this.sessions.hasNext();
+		}
+
+		@Override
+		public CouchbaseSession next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return this.sessions.next();
+		}
+	}
+
+	/**
+	 * Reads the session, sharing the read with any concurrent caller asking for the same
+	 * id. Every caller gets its own copy of the session.
+	 */
+	@Nullable
+	private CouchbaseSession readShared(String id) {
+
+		CompletableFuture<LoadedSession> read = new CompletableFuture<>();
+		CompletableFuture<LoadedSession> inFlight = this.inFlightReads.putIfAbsent(id,
+				read);
+
+		if (inFlight == null) {
+			try {
+				read.complete(readSession(id));
+			}
+			catch (RuntimeException ex) {
+				read.completeExceptionally(ex);
+				throw ex;
+			}
+			finally {
+				this.inFlightReads.remove(id, read);
+			}
+			return read.join().newSession();
+		}
+
+		try {
+			return inFlight.join().newSession();
+		}
+		catch (CompletionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Reads the session. Expired sessions are recognized from the metadata of their
+	 * document and removed, before their attributes are decoded.
+	 */
+	private LoadedSession readSession(String id) {
+
+		CouchbaseSession session = this.sessionCache != null ? findCachedSession(id)
+				: null;
+		if (session != null && !session.isExpired()) {
+			return new LoadedSession(session, null);
+		}
+
+		Document<?> sessionWrapper = findSession(id);
+		if (sessionWrapper == null) {
+			return new LoadedSession(null, null);
+		}
+
+		if (isExpired(this.couchbaseSessionConverter, sessionWrapper)) {
+			return removeExpired(sessionWrapper) ? new LoadedSession(null, null)
+					: readSession(id);
+		}
+
+		session = convertDocument(sessionWrapper);
+		if (session != null && this.sessionCache != null) {
+			this.sessionCache.put(session);
+		}
+		return new LoadedSession(session, sessionWrapper);
+	}
+
+	/**
+	 * @return a copy of the cached session if the stored document didn't change since it
+	 *     was cached
+	 */
+	@Nullable
+	private CouchbaseSession findCachedSession(String id) {
+
+		if (this.sessionCache.getCas(id) == null) {
+			return null;
+		}
+
+		try {
+			long cas = this.bucket.lookupIn(id)
+					.exists(DOCUMENT_XATTR, SubdocOptionsBuilder.builder().xattr(true))
+					.execute().cas();
+			return this.sessionCache.get(id, cas);
+		}
+		catch (DocumentDoesNotExistException ex) {
+			this.sessionCache.missing(id);
+			return null;
+		}
+	}
+
+	/**
+	 * Removes an expired session document, provided it didn't change since it was read,
+	 * and publishes a {@link SessionExpiredEvent}. The session handed to listeners is
+	 * converted from the document already read.
+	 *
+	 * @return {@code false} if the document changed since it was read
+	 */
+	private boolean removeExpired(Document<?> document) {
+
+		if (this.sessionCache != null) {
+			this.sessionCache.invalidate(document.id());
+		}
+
+		try {
+			this.bucket.remove(document);
+		}
+		catch (CASMismatchException ex) {
+			return false;
+		}
+		catch (DocumentDoesNotExistException ex) {
+			// already removed, e.g. by another node
+			return true;
+		}
+
+		sessionRemoved(document, SessionExpiredEvent.class, SessionExpiredEvent::new);
+		return true;
+	}
+
+	/**
+	 * Removes those of the given sessions which expired, fetching and removing them in
+	 * parallel, and publishes a {@link SessionExpiredEvent} for each of them.
+	 *
+	 * @return the number of expired sessions
+	 */
+	private int expireSessions(List<String> ids) {
+
+		List<Document<?>> expired = Observable.from(ids).flatMap(this::findSessionAsync)
+				.filter(document -> isExpired(this.couchbaseSessionConverter, document))
+				.flatMap(this::removeExpiredAsync).toList().toBlocking().single();
+
+		for (Document<?> document : expired) {
+			if (this.sessionCache != null) {
+				this.sessionCache.invalidate(document.id());
+			}
+			sessionRemoved(document, SessionExpiredEvent.class, SessionExpiredEvent::new);
+		}
+		return expired.size();
+	}
+
+	private Observable<? extends Document<?>> findSessionAsync(String id) {
+
+		if (this.documentFormat == SessionDocumentFormat.BINARY) {
+			return this.bucket.async().get(id, ByteArrayDocument.class);
+		}
+		return this.bucket.async().get(id);
+	}
+
+	/**
+	 * Removes the document unless it changed since it was read.
+	 *
+	 * @return the document if it was removed
+	 */
+	private Observable<Document<?>> removeExpiredAsync(Document<?> document) {
+		return this.bucket.async().remove(document).<Document<?>>map(removed -> document)
+				.onErrorResumeNext(ex -> ex instanceof CASMismatchException
+						|| ex instanceof DocumentDoesNotExistException
+								? Observable.empty()
+								: Observable.error(ex));
+	}
+
+	@Override
+	public void deleteById(String id) {
+
+		if (this.writeBehind != null) {
+			this.writeBehind.discard(id);
+		}
+
+		if (this.sessionCache != null) {
+			this.sessionCache.invalidate(id);
+		}
+
+		if (this.principalIndex == null && !hasListeners(SessionDeletedEvent.class)) {
+			// nothing needs the content of the session
+			try {
+				this.bucket.remove(id);
+			}
+			catch (DocumentDoesNotExistException ex) {
+				// already removed
+			}
+			return;
+		}
+
+		Optional.ofNullable(findSession(id)).ifPresent(document -> {
+
+			sessionRemoved(document, SessionDeletedEvent.class, SessionDeletedEvent::new);
+
+			this.bucket.remove(document);
+		});
+	}
+
+	/**
+	 * Deletes many sessions at once, fetching and removing them through the asynchronous
+	 * API with at most {@code bulkConcurrency} requests in flight. A
+	 * {@link SessionDeletedEvent} is published for every removed session, as with
+	 * {@link #deleteById(String)}.
+	 *
+	 * @param ids the ids of the sessions
+	 * @return the deleted sessions by id, and the failure of every id which couldn't be
+	 *     deleted
+	 */
+	public CouchbaseSessionBulkResult deleteAllById(Collection<String> ids) {
+
+		Set<String> uniqueIds = new LinkedHashSet<>(ids);
+		for (String id : uniqueIds) {
+			if (this.writeBehind != null) {
+				this.writeBehind.discard(id);
+			}
+			if (this.sessionCache != null) {
+				this.sessionCache.invalidate(id);
+			}
+		}
+
+		Map<String, Throwable> errors = new ConcurrentHashMap<>();
+		List<Document<?>> removed = Observable.from(uniqueIds)
+				.flatMap(id -> removeSessionAsync(id).onErrorResumeNext(ex -> {
+					errors.put(id, ex);
+					return Observable.empty();
+				}), this.bulkConcurrency)
+				.toList().toBlocking().single();
+
+		Map<String, CouchbaseSession> sessions = new LinkedHashMap<>();
+		for (Document<?> document : removed) {
+			try {
+				CouchbaseSession session = convertDocument(document);
+				if (session != null) {
+					unindexPrincipal(session);
+					publishEvent(SessionDeletedEvent.class, session,
+							SessionDeletedEvent::new);
+					sessions.put(document.id(), session);
+				}
+			}
+			catch (RuntimeException ex) {
+				errors.put(document.id(), ex);
+			}
+		}
+		return new CouchbaseSessionBulkResult(sessions, errors);
+	}
+
+	/**
+	 * Removes the document of a session, reading it again if it changed since it was
+	 * read, so that the removed session is the one passed to listeners.
+	 *
+	 * @return the removed document, if any
+	 */
+	private Observable<Document<?>> removeSessionAsync(String id) {
+		return findSessionAsync(id)
+				.flatMap(document -> this.bucket.async().remove(document)
+						.<Document<?>>map(removed -> document)
+						.onErrorResumeNext(ex -> ex instanceof CASMismatchException
+								? removeSessionAsync(id)
+								: ex instanceof DocumentDoesNotExistException
+										? Observable.empty()
+										: Observable.error(ex)));
+	}
+
+	/**
+	 * Removes all sessions of a principal, e.g. to log a compromised account out
+	 * everywhere. Session attributes are only decoded if a listener is registered for
+	 * {@link SessionDeletedEvent}, in which case the event is published for every
+	 * removed session.
+	 * <p>
+	 * With a {@link CouchbasePrincipalIndex}, the indexed sessions are removed in a
+	 * single batched pass with at most {@code bulkConcurrency} requests in flight,
+	 * skipping JSON sessions whose principal changed. Otherwise they are removed by a
+	 * single N1QL {@code DELETE}, which requires JSON documents.
+	 *
+	 * @param principalName the principal name
+	 * @return the number of removed sessions
+	 * @throws DataAccessResourceFailureException if some sessions couldn't be removed,
+	 *     the others still are
+	 */
+	public int deleteByPrincipalName(String principalName) {
+
+		boolean notify = hasListeners(SessionDeletedEvent.class);
+		return this.principalIndex != null
+				? deleteIndexedPrincipal(principalName, notify)
+				: deleteQueriedPrincipal(principalName, notify);
+	}
+
+	/**
+	 * Removes the sessions of the principal found in the principal index, then the ids
+	 * which were handled from the index.
+	 */
+	private int deleteIndexedPrincipal(String principal, boolean notify) {
+
+		JsonDocument index = this.principalIndex.findDocument(principal);
+		if (index == null) {
+			return 0;
+		}
+		Set<String> ids = index.content().getNames();
+		for (String id : ids) {
+			if (this.writeBehind != null) {
+				this.writeBehind.discard(id);
+			}
+			if (this.sessionCache != null) {
+				this.sessionCache.invalidate(id);
+			}
+		}
+
+		Map<String, Throwable> errors = new ConcurrentHashMap<>();
+		List<Document<?>> removed = Observable.from(ids)
+				.flatMap(id -> (notify ? removeOwnedSessionAsync(id, principal)
+						: removeOwnedIdAsync(id, principal)).onErrorResumeNext(ex -> {
+							errors.put(id, ex);
+							return Observable.empty();
+						}), this.bulkConcurrency)
+				.toList().toBlocking().single();
+
+		Set<String> handled = new HashSet<>(ids);
+		handled.removeAll(errors.keySet());
+		this.principalIndex.removeAll(principal, index, handled);
+
+		if (notify) {
+			removed.forEach(this::publishDeleted);
+		}
+		if (!errors.isEmpty()) {
+			throw bulkFailure(principal, errors.values());
+		}
+		return removed.size();
+	}
+
+	/**
+	 * Removes the document of a session of the principal, reading it again if it
+	 * changed since it was read.
+	 *
+	 * @return the removed document, if any
+	 */
+	private Observable<Document<?>> removeOwnedSessionAsync(String id, String principal) {
+		return findSessionAsync(id).filter(document -> isOwnedBy(document, principal))
+				.flatMap(document -> this.bucket.async().remove(document)
+						.<Document<?>>map(removed -> document)
+						.onErrorResumeNext(ex -> ex instanceof CASMismatchException
+								? removeOwnedSessionAsync(id, principal)
+								: ex instanceof DocumentDoesNotExistException
+										? Observable.empty()
+										: Observable.error(ex)));
+	}
+
+	/**
+	 * Removes the document of a session of the principal without fetching it. The
+	 * principal of JSON sessions is checked through a sub-document lookup, binary
+	 * sessions are trusted to belong to the principal they are indexed for.
+	 *
+	 * @return a document carrying only the id of the removed session, if any
+	 */
+	private Observable<Document<?>> removeOwnedIdAsync(String id, String principal) {
+
+		AsyncBucket asyncBucket = this.bucket.async();
+		Observable<Document<?>> removal = this.documentFormat == SessionDocumentFormat.BINARY
+				? asyncBucket.remove(id).<Document<?>>map(removed -> removed)
+				: asyncBucket.lookupIn(id)
+						.get(AbstractCouchbaseSessionConverter.PRINCIPAL_FIELD_NAME)
+						.execute()
+						.filter(fragment -> principal.equals(fragment.content(
+								AbstractCouchbaseSessionConverter.PRINCIPAL_FIELD_NAME)))
+						.flatMap(fragment -> asyncBucket
+								.remove(JsonDocument.create(id, null, fragment.cas()))
+								.<Document<?>>map(removed -> removed)
+								.onErrorResumeNext(ex -> ex instanceof CASMismatchException
+										? removeOwnedIdAsync(id, principal)
+										: Observable.error(ex)));
+		return removal.onErrorResumeNext(ex -> ex instanceof DocumentDoesNotExistException
+				|| ex instanceof PathNotFoundException ? Observable.empty()
+						: Observable.error(ex));
+	}
+
+	/**
+	 * Binary sessions can't be checked without decoding them, and are considered owned
+	 * by the principal they are indexed for.
+	 */
+	private static boolean isOwnedBy(Document<?> document, String principal) {
+		return !(document instanceof JsonDocument)
+				|| principal.equals(((JsonDocument) document).content()
+						.getString(AbstractCouchbaseSessionConverter.PRINCIPAL_FIELD_NAME));
+	}
+
+	/**
+	 * Removes the sessions of the principal through a N1QL {@code DELETE}, returning only
+	 * their ids unless the deleted sessions have to be published. Sessions queued for
+	 * write-behind are written first, so that they are removed too.
+	 */
+	private int deleteQueriedPrincipal(String principal, boolean notify) {
+
+		if (this.documentFormat != SessionDocumentFormat.JSON) {
+			throw new UnsupportedOperationException(
+					"Sessions stored as " + this.documentFormat
+							+ " documents can't be deleted by principal without "
+							+ CouchbasePrincipalIndex.class.getSimpleName());
+		}
+		if (this.writeBehind != null) {
+			this.writeBehind.flush();
+		}
+
+		N1qlQuery query = N1qlQuery.parameterized(deleteByPrincipalQuery(notify),
+				JsonObject.create().put("value", principal), N1qlParams.build()
+						.adhoc(false).consistency(ScanConsistency.REQUEST_PLUS));
+		List<JsonObject> rows = this.bucket.async().query(query)
+				.flatMap(result -> result.rows().concatWith(result.errors()
+						.flatMap(error -> Observable.error(new QueryExecutionException(
+								"Deleting the sessions of a principal failed", error)))))
+				.map(row -> row.value()).toList().toBlocking().single();
+
+		for (JsonObject row : rows) {
+			String id = row.getString("id");
+			if (this.writeBehind != null) {
+				this.writeBehind.discard(id);
+			}
+			if (this.sessionCache != null) {
+				this.sessionCache.invalidate(id);
+			}
+			if (notify) {
+				publishDeleted(JsonDocument.create(id, row.getObject("doc"),
+						row.getLong("cas")));
+			}
+		}
+		return rows.size();
+	}
+
+	/**
+	 * @return the statement deleting the sessions of a principal, returning their ids
+	 *     and, if {@code withDocuments}, their content
+	 */
+	private String deleteByPrincipalQuery(boolean withDocuments) {
+		Expression keyspace = Expression.i(this.bucket.name());
+		Expression meta = MetaFunctions.meta(keyspace);
+		return "DELETE FROM " + keyspace + " WHERE " + indexCondition()
+				.and(Expression.i(AbstractCouchbaseSessionConverter.PRINCIPAL_FIELD_NAME)
+						.eq(Expression.x("$value")))
+				+ " RETURNING " + meta.get("id").as("id")
+				+ (withDocuments ? ", " + meta.get("cas").as("cas") + ", "
+						+ keyspace.as("doc") : "");
+	}
+
+	private void publishDeleted(Document<?> document) {
+		publishRemoved(document, SessionDeletedEvent::new);
+	}
+
+	private static DataAccessResourceFailureException bulkFailure(String principal,
+			Collection<Throwable> causes) {
+
+		Iterator<Throwable> iterator = causes.iterator();
+		DataAccessResourceFailureException failure = new DataAccessResourceFailureException(
+				"Failed to remove " + causes.size() + " sessions of " + principal,
+				iterator.next());
+		iterator.forEachRemaining(failure::addSuppressed);
+		return failure;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		if (this.writeBehind != null) {
+			this.writeBehind.start(this::writeSessions);
+		}
+		if (this.expirations != null) {
+			this.expirations.start(this::expireSessions);
+		}
+		if (this.decodeParallelism > 1) {
+			AtomicInteger threads = new AtomicInteger();
+			this.decodeExecutor = Executors.newFixedThreadPool(this.decodeParallelism,
+					runnable -> {
+						Thread thread = new Thread(runnable,
+								"couchbase-session-decode-" + threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+		}
+
+		this.couchbaseSessionConverter.setIndexedAttributes(this.indexedAttributes);
+		this.couchbaseSessionConverter.setClock(this.clock);
+		checkDocumentFormat(this.couchbaseSessionConverter, this.documentFormat);
+
+		if (this.documentFormat != SessionDocumentFormat.JSON) {
+			if (!this.indexedAttributes.isEmpty()) {
+				throw new IllegalStateException("Sessions stored as " + this.documentFormat
+						+ " documents can't have indexed attributes");
+			}
+			if (this.principalIndex == null) {
+				throw new IllegalStateException("Sessions stored as " + this.documentFormat
+						+ " documents can only be found by principal name through the"
+						+ " principal index, which must be enabled");
+			}
+			return;
+		}
+
+		if (this.principalIndex == null) {
+			createIndex(PRINCIPAL_QUERY_INDEX,
+					AbstractCouchbaseSessionConverter.PRINCIPAL_FIELD_NAME);
+		}
+		for (String attributeName : this.indexedAttributes) {
+			createIndex(ATTRIBUTE_INDEX_PREFIX
+					+ attributeName.replaceAll("[^A-Za-z0-9_]", "_"),
+					AbstractCouchbaseSessionConverter.indexedField(attributeName));
+		}
+	}
+
+	/**
+	 * Creates the index on a field of the session documents unless it exists, in which
+	 * case it checks that the existing index can serve the queries on the field.
+	 */
+	private void createIndex(String indexName, String field) {
+
+		BucketManager bucketManager = this.bucket.bucketManager();
+		boolean created = bucketManager.createN1qlIndex(indexName,
+				Collections.singletonList(Expression.i(field)), indexCondition(), true,
+				false);
+
+		if (created) {
+			logger.warn("The index '" + indexName
+					+ "' does not exist, it will be created automatically");
+			return;
+		}
+
+		IndexInfo index = bucketManager.listN1qlIndexes().stream()
+				.filter(info -> info.name().equals(indexName)).findFirst().orElse(null);
+		if (index != null && index.indexKey().toList().contains("`" + field + "`")
+				&& index.condition() != null
+				&& index.condition().contains("\"" + this.valueType + "\"")) {
+			logger.info("The index '" + indexName
+					+ "' already exist. Whenever you change the document type attribute "
+					+ " or the the document type value, this index must be recreated.");
+		}
+		else {
+			logger.warn("The index '" + indexName + "' doesn't match the field `" + field
+					+ "` or the document type and won't be used, it must be recreated");
+		}
+	}
+
+	/**
+	 * Writes the sessions still queued for write-behind.
+	 */
+	@Override
+	public void destroy() {
+		if (this.expirations != null) {
+			this.expirations.stop();
+		}
+		if (this.writeBehind != null) {
+			this.writeBehind.stop();
+		}
+		if (this.decodeExecutor != null) {
+			this.decodeExecutor.shutdown();
+		}
+		if (this.eventExecutor != null) {
+			this.eventExecutor.stop();
+		}
+	}
+
+	@Nullable
+	private Document<?> findSession(String id) {
+
+		if (this.documentFormat == SessionDocumentFormat.BINARY) {
+			return this.bucket.get(id, ByteArrayDocument.class);
+		}
+		return this.bucket.get(id);
+	}
+
+	@Nullable
+	private CouchbaseSession convertDocument(Document<?> document) {
+
+		return convertDocumentToSession(this.couchbaseSessionConverter, document);
+	}
+
+	@Override
+	public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
+		this.eventPublisher = eventPublisher;
+	}
+
+	/**
+	 * Tells whether any listener would receive events of the given type, so that
+	 * sessions are only decoded for events somebody listens to. Unless unobserved events
+	 * are skipped, every event type is assumed to have listeners. Otherwise listeners
+	 * registered with an application context and its parents are inspected, any other
+	 * publisher or a custom event multicaster is assumed to have listeners. The answer
+	 * is kept until listeners are added or removed.
+	 */
+	private boolean hasListeners(Class<? extends ApplicationEvent> eventType) {
+
+		if (this.eventPublisher == null) {
+			return false;
+		}
+		if (!this.skipUnobservedEvents) {
+			return true;
+		}
+
+		int count = countListeners();
+		if (count != this.listenerCount) {
+			this.listenedEventTypes.clear();
+			this.listenerCount = count;
+		}
+		return this.listenedEventTypes.computeIfAbsent(eventType,
+				this::findListeners);
+	}
+
+	/**
+	 * @return the number of listeners and listener beans registered with the
+	 *     application contexts, or {@code 0} if events are published through something
+	 *     else
+	 */
+	private int countListeners() {
+		int count = 0;
+		Object publisher = this.eventPublisher;
+		while (publisher instanceof AbstractApplicationContext) {
+			AbstractApplicationContext context = (AbstractApplicationContext) publisher;
+			count += context.getApplicationListeners().size();
+			if (context.isActive()) {
+				count += context.getBeanNamesForType(ApplicationListener.class, true,
+						false).length;
+			}
+			publisher = context.getParent();
+		}
+		return count;
+	}
+
+	private boolean findListeners(Class<?> eventType) {
+
+		ResolvableType type = ResolvableType.forClass(eventType);
+		Object publisher = this.eventPublisher;
+		while (publisher != null) {
+			if (!(publisher instanceof AbstractApplicationContext)) {
+				return true;
+			}
+			AbstractApplicationContext context = (AbstractApplicationContext) publisher;
+			if (!context.isActive() || context.getBeanFactory().containsBeanDefinition(
+					AbstractApplicationContext.APPLICATION_EVENT_MULTICASTER_BEAN_NAME)) {
+				return true;
+			}
+			for (ApplicationListener<?> listener : context.getApplicationListeners()) {
+				if (this.inactiveListenerTypes.contains(listener.getClass())) {
+					continue;
+				}
+				GenericApplicationListener adapter = listener instanceof GenericApplicationListener
+						? (GenericApplicationListener) listener
+						: new GenericApplicationListenerAdapter(listener);
+				if (adapter.supportsEventType(type)
+						&& adapter.supportsSourceType(getClass())) {
+					return true;
+				}
+			}
+			if (hasListenerBeans(context, type)) {
+				return true;
+			}
+			publisher = context.getParent();
+		}
+		return false;
+	}
+
+	/**
+	 * Checks the declared types of the listener beans of the context, which covers lazy
+	 * and scoped listeners the event multicaster only resolves when publishing. Listeners
+	 * which decide at runtime which events they support are assumed to listen.
+	 */
+	private boolean hasListenerBeans(AbstractApplicationContext context,
+			ResolvableType eventType) {
+
+		for (String name : context.getBeanNamesForType(ApplicationListener.class, true,
+				false)) {
+			Class<?> listenerType = context.getType(name);
+			if (listenerType == null) {
+				return true;
+			}
+			if (this.inactiveListenerTypes.contains(listenerType)) {
+				continue;
+			}
+			if (SmartApplicationListener.class.isAssignableFrom(listenerType)
+					|| GenericApplicationListener.class.isAssignableFrom(listenerType)) {
+				return true;
+			}
+			ResolvableType declaredType = ResolvableType.forClass(listenerType)
+					.as(ApplicationListener.class).getGeneric();
+			if (declaredType == ResolvableType.NONE
+					|| declaredType.isAssignableFrom(eventType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Publishes an event about a session if anybody listens to it, on the event executor
+	 * if any. Listeners on the executor get a copy of the session, so that they don't
+	 * see later changes made by the request.
+	 */
+	private <E extends ApplicationEvent> void publishEvent(Class<E> eventType,
+			CouchbaseSession session, BiFunction<Object, Session, E> eventFactory) {
+
+		if (!hasListeners(eventType)) {
+			return;
+		}
+		if (this.eventExecutor != null) {
+			CouchbaseSession copy = session.copy();
+			this.eventExecutor.execute(() -> publishEvent(eventFactory.apply(this, copy)));
+		}
+		else {
+			publishEvent(eventFactory.apply(this, session));
+		}
+	}
+
+	/**
+	 * Removes a removed session from the principal index and publishes an event about
+	 * it. The document is only decoded if the principal index or listeners need the
+	 * session, and then on the event executor if only listeners do.
+	 */
+	private <E extends ApplicationEvent> void sessionRemoved(Document<?> document,
+			Class<E> eventType, BiFunction<Object, Session, E> eventFactory) {
+
+		boolean notify = hasListeners(eventType);
+		if (this.principalIndex == null) {
+			if (notify) {
+				publishRemoved(document, eventFactory);
+			}
+			return;
+		}
+
+		CouchbaseSession session = convertDocument(document);
+		if (session != null) {
+			unindexPrincipal(session);
+			if (notify) {
+				dispatch(() -> publishEvent(eventFactory.apply(this, session)));
+			}
+		}
+	}
+
+	/**
+	 * Decodes a removed session and publishes an event about it, on the event executor
+	 * if any. Callers check that anybody listens to the event.
+	 */
+	private <E extends ApplicationEvent> void publishRemoved(Document<?> document,
+			BiFunction<Object, Session, E> eventFactory) {
+
+		dispatch(() -> {
+			try {
+				CouchbaseSession session = convertDocument(document);
+				if (session != null) {
+					publishEvent(eventFactory.apply(this, session));
+				}
+			}
+			catch (RuntimeException ex) {
+				logger.error("Failed to decode removed session " + document.id(), ex);
+			}
+		});
+	}
+
+	/**
+	 * Runs the publication of an event on the event executor, if any.
+	 */
+	private void dispatch(Runnable publication) {
+		if (this.eventExecutor != null) {
+			this.eventExecutor.execute(publication);
+		}
+		else {
+			publication.run();
+		}
+	}
+
+	private void publishEvent(ApplicationEvent event) {
+		try {
+			this.eventPublisher.publishEvent(event);
+		}
+		catch (Throwable ex) {
+			logger.error("Error publishing " + event + ".", ex);
+		}
+	}
+
+	/**
+	 * Result of reading a session, from which every caller gets its own session. A
+	 * session whose attributes are all still serialized is copied, otherwise the first
+	 * caller gets the session itself and the others decode the document again.
+	 */
+	private final class LoadedSession {
+
+		@Nullable
+		private final CouchbaseSession session;
+		@Nullable
+		private final Document<?> document;
+		private final boolean shareable;
+		private boolean claimed;
+
+		private LoadedSession(@Nullable CouchbaseSession session,
+				@Nullable Document<?> document) {
+			this.session = session;
+			this.document = document;
+			this.shareable = session != null && session.isShareable();
+		}
+
+		@Nullable
+		private synchronized CouchbaseSession newSession() {
+			if (this.session == null || this.shareable) {
+				return this.session != null ? this.session.copy() : null;
+			}
+			if (!this.claimed) {
+				this.claimed = true;
+				return this.session;
+			}
+			return convertDocument(this.document);
+		}
 	}
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.springframework.session.data.couchbase.CBSessionUtils.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.PathNotFoundException;
+
+/**
+ * Lookup documents mapping principal names to the ids of their sessions, maintained by
+ * {@link CouchbaseOperationsSessionRepository} when sessions are saved and removed, so
+ * that finding the sessions of a principal takes a single get instead of a N1QL query.
+ * <p>
+ * Every principal has a document holding the ids of its sessions as field names, which
+ * are added and removed through sub-document mutations. Ids of sessions which were
+ * removed without the repository noticing, e.g. by the expiry of their document, are
+ * pruned when the sessions of the principal are looked up.
+ */
+public final class CouchbasePrincipalIndex {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CouchbasePrincipalIndex.class);
+
+	private static final String KEY_PREFIX = "spring:session:index:principal:";
+	private static final int MAX_KEY_LENGTH = 250;
+	/**
+	 * The expiry of the document of a principal is set to the end of the period
+	 * following the one the expiration of the session falls in, so that it stays at
+	 * least one period ahead of it and only has to be extended when the expiration of
+	 * the session moves to a later period.
+	 */
+	private static final long PERIOD_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+	private final Bucket bucket;
+	private final String keyPrefix;
+
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder prunedSessions = new LongAdder();
+
+	/**
+	 * @param bucket the bucket the sessions are stored in
+	 * @param namespace distinguishes the index documents of applications sharing the
+	 *     bucket, usually the session document type value
+	 */
+	public CouchbasePrincipalIndex(Bucket bucket, String namespace) {
+		Assert.notNull(bucket, "bucket cannot be null");
+		Assert.hasText(namespace, "namespace cannot be empty");
+		this.bucket = bucket;
+		this.keyPrefix = KEY_PREFIX + namespace + ":";
+	}
+
+	/**
+	 * Adds the session to the document of the principal, or extends the expiry of the
+	 * document if the session is already there.
+	 *
+	 * @param principal the principal name
+	 * @param session the session
+	 */
+	void add(String principal, CouchbaseSession session) {
+
+		int expiry = session.getMaxInactiveInterval().isNegative() ? 0
+				: toDocumentExpiry((periodOf(Math.max(session.getExpireAtMillis(),
+						System.currentTimeMillis())) + 2) * PERIOD_MILLIS);
+		this.bucket.mutateIn(keyOf(principal))
+				.upsert(CouchbaseSessionDelta.escape(session.getId()), true)
+				.upsertDocument(true).withExpiry(expiry).execute();
+	}
+
+	/**
+	 * @param session a stored session whose principal didn't change
+	 * @return {@code true} if the expiry of the document of its principal has to be
+	 *     extended, because the expiration of the session moved to a later period or
+	 *     its max inactive interval changed
+	 */
+	static boolean isExpiryExtended(CouchbaseSession session) {
+		if (session.isMaxInactiveIntervalChanged()) {
+			return true;
+		}
+		return !session.getMaxInactiveInterval().isNegative()
+				&& periodOf(session.getExpireAtMillis()) > periodOf(
+						session.getPersistedExpireAt());
+	}
+
+	private static long periodOf(long millis) {
+		return millis / PERIOD_MILLIS;
+	}
+
+	/**
+	 * Removes the session from the document of the principal, if it is there.
+	 *
+	 * @param principal the principal name
+	 * @param id the session id
+	 */
+	void remove(String principal, String id) {
+		try {
+			this.bucket.mutateIn(keyOf(principal))
+					.remove(CouchbaseSessionDelta.escape(id)).execute();
+		}
+		catch (DocumentDoesNotExistException | PathNotFoundException ex) {
+			// never indexed, or already pruned
+		}
+		catch (RuntimeException ex) {
+			logger.warn("Failed to remove session " + id + " from the index of "
+					+ principal, ex);
+		}
+	}
+
+	/**
+	 * Removes ids found not to belong to a live session of the principal anymore.
+	 */
+	void prune(String principal, Set<String> ids) {
+		ids.forEach(id -> remove(principal, id));
+		this.prunedSessions.add(ids.size());
+	}
+
+	/**
+	 * @param principal the principal name
+	 * @return the ids of the sessions indexed for the principal, which may include
+	 *     sessions which don't exist anymore
+	 */
+	Set<String> find(String principal) {
+		JsonDocument document = findDocument(principal);
+		return document != null ? document.content().getNames()
+				: Collections.emptySet();
+	}
+
+	/**
+	 * @param principal the principal name
+	 * @return the document of the principal, whose field names are the ids of its
+	 *     sessions, or {@code null} if it has none
+	 */
+	@Nullable
+	JsonDocument findDocument(String principal) {
+		this.lookups.increment();
+		return this.bucket.get(keyOf(principal));
+	}
+
+	/**
+	 * Removes the given ids from the document of the principal after its sessions were
+	 * removed. The whole document is removed if it didn't change since it was read and
+	 * all its ids are given, otherwise the ids are removed one by one.
+	 *
+	 * @param principal the principal name
+	 * @param document the document of the principal, as read by
+	 *     {@link #findDocument(String)}
+	 * @param ids the ids to remove
+	 */
+	void removeAll(String principal, JsonDocument document, Set<String> ids) {
+		if (ids.containsAll(document.content().getNames())) {
+			try {
+				this.bucket.remove(document);
+				return;
+			}
+			catch (DocumentDoesNotExistException ex) {
+				return;
+			}
+			catch (CASMismatchException ex) {
+				// sessions were added meanwhile
+			}
+		}
+		ids.forEach(id -> remove(principal, id));
+	}
+
+	/**
+	 * Principal names too long for a document key are replaced by their hash.
+	 */
+	private String keyOf(String principal) {
+		String key = this.keyPrefix + principal;
+		if (key.getBytes(StandardCharsets.UTF_8).length <= MAX_KEY_LENGTH) {
+			return key;
+		}
+		return this.keyPrefix + "md5:" + DigestUtils
+				.md5DigestAsHex(principal.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public long getLookups() {
+		return this.lookups.sum();
+	}
+
+	public long getPrunedSessions() {
+		return this.prunedSessions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "CouchbasePrincipalIndex [lookups=" + getLookups() + ", prunedSessions="
+				+ getPrunedSessions() + "]";
+	}
+}
@@ -15,11 +15,17 @@
  */
 package org.springframework.session.data.couchbase;
 
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+import org.springframework.core.convert.converter.Converter;
 import org.springframework.lang.Nullable;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.SaveMode;
 import org.springframework.session.Session;
 import org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults;
 
@@ -35,6 +41,18 @@ import lombok.Setter;
 @EqualsAndHashCode(of = { "id" })
 public class CouchbaseSession implements Session {
 
+	/**
+	 * Attributes the principal of the session is resolved from.
+	 */
+	private static final Set<String> PRINCIPAL_ATTRIBUTES = new HashSet<>(
+			Arrays.asList(DefaultPrincipalNameResolver.SPRING_SECURITY_CONTEXT,
+					FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME));
+
+	/**
+	 * Generator shared by sessions and repositories which aren't given one.
+	 */
+	static final SessionIdGenerator DEFAULT_ID_GENERATOR = new SecureRandomSessionIdGenerator();
+
 	@Getter
 	@Setter
 	private String id;
@@ -43,29 +61,50 @@ public class CouchbaseSession implements Session {
 	@Getter
 	@Setter
 	private long intervalSeconds;
-	@Getter
-	@Setter
-	private Date expireAt;
-	private Map<String, Object> attrs = new HashMap<>();
+	private long expireAtMillis;
+	private final Map<String, Object> attrs = new CompactAttributeMap();
+	private String originalId;
+	private boolean isNew = true;
+	private long persistedAccessedMillis;
+	private long persistedIntervalSeconds;
+	private long cas;
+	@Nullable
+	private String storedPrincipal;
+	/**
+	 * Principal resolved from the attributes, valid until one of
+	 * {@link #PRINCIPAL_ATTRIBUTES} changes.
+	 */
+	@Nullable
+	private String principal;
+	private boolean principalResolved;
+	private SaveMode saveMode = SaveMode.ON_SET_ATTRIBUTE;
+	@Nullable
+	private Consumer<CouchbaseSession> flushAction;
+	private SessionIdGenerator idGenerator = DEFAULT_ID_GENERATOR;
+	private Clock clock = Clock.systemUTC();
+	private final Set<String> changedAttributes = new HashSet<>();
+	private final Set<String> addedAttributes = new HashSet<>();
+	private final Set<String> removedAttributes = new HashSet<>();
 
 	public CouchbaseSession() {
 		this(CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL);
 	}
 
 	public CouchbaseSession(long maxInactiveIntervalInSeconds) {
-		this(UUID.randomUUID().toString(), maxInactiveIntervalInSeconds);
+		this(DEFAULT_ID_GENERATOR.generateId(), maxInactiveIntervalInSeconds);
 	}
 
 	public CouchbaseSession(String id, long maxInactiveIntervalInSeconds) {
 
 		this.id = id;
+		this.originalId = id;
 		this.intervalSeconds = maxInactiveIntervalInSeconds;
-		setLastAccessedTime(Instant.ofEpochMilli(this.createdMillis));
+		setLastAccessedTime(this.createdMillis);
 	}
 
 	public String changeSessionId() {
 
-		String changedId = UUID.randomUUID().toString();
+		String changedId = this.idGenerator.generateId();
 		this.id = changedId;
 		return changedId;
 	}
@@ -73,7 +112,49 @@ public class CouchbaseSession implements Session {
 	@Override
 	@Nullable
 	public <T> T getAttribute(String attributeName) {
-		return (T) this.attrs.get(attributeName);
+
+		Object value = this.attrs.get(attributeName);
+		if (value instanceof SerializedAttribute) {
+			value = ((SerializedAttribute) value).deserialize();
+			if (value != null) {
+				// replaces the value only, iterations over the names stay valid
+				this.attrs.put(attributeName, value);
+			}
+		}
+		if (value != null && this.saveMode == SaveMode.ON_GET_ATTRIBUTE) {
+			// the caller may change the value without setting it again
+			this.changedAttributes.add(attributeName);
+		}
+		return (T) value;
+	}
+
+	/**
+	 * Sets an attribute from its stored form. The value is deserialized the first time it
+	 * is read and the attribute is not reported as changed.
+	 *
+	 * @param attributeName the attribute name
+	 * @param serializedValue the serialized attribute value
+	 * @param deserializer converter turning the serialized value into the attribute
+	 */
+	public void setSerializedAttribute(String attributeName, byte[] serializedValue,
+			Converter<byte[], Object> deserializer) {
+
+		this.attrs.put(attributeName,
+				new SerializedAttribute(serializedValue, deserializer));
+	}
+
+	/**
+	 * @param attributeName the attribute name
+	 * @return the serialized value the attribute was loaded with, or {@code null} if it
+	 *     was read or set since
+	 */
+	@Nullable
+	public byte[] getSerializedAttribute(String attributeName) {
+
+		Object value = this.attrs.get(attributeName);
+		return value instanceof SerializedAttribute
+				? ((SerializedAttribute) value).serializedValue
+				: null;
 	}
 
 	public Set<String> getAttributeNames() {
@@ -86,18 +167,38 @@ public class CouchbaseSession implements Session {
 			removeAttribute(attributeName);
 		}
 		else {
-			this.attrs.put(attributeName, attributeValue);
+			Object previous = this.attrs.put(attributeName, attributeValue);
+			if (previous == null && !this.removedAttributes.remove(attributeName)) {
+				this.addedAttributes.add(attributeName);
+			}
+			this.changedAttributes.add(attributeName);
+			forgetPrincipal(attributeName);
+			flushImmediately();
 		}
 	}
 
 	public void removeAttribute(String attributeName) {
-		this.attrs.remove(attributeName);
+		if (this.attrs.remove(attributeName) != null) {
+			this.changedAttributes.remove(attributeName);
+			if (!this.addedAttributes.remove(attributeName)) {
+				this.removedAttributes.add(attributeName);
+			}
+			forgetPrincipal(attributeName);
+			flushImmediately();
+		}
 	}
 
 	public Instant getCreationTime() {
 		return Instant.ofEpochMilli(this.createdMillis);
 	}
 
+	/**
+	 * @return the creation time in milliseconds since the epoch
+	 */
+	public long getCreationTimeMillis() {
+		return this.createdMillis;
+	}
+
 	public void setCreationTime(long created) {
 		this.createdMillis = created;
 	}
@@ -106,11 +207,26 @@ public class CouchbaseSession implements Session {
 		return Instant.ofEpochMilli(this.accessedMillis);
 	}
 
+	/**
+	 * @return the last accessed time in milliseconds since the epoch
+	 */
+	public long getLastAccessedTimeMillis() {
+		return this.accessedMillis;
+	}
+
 	public void setLastAccessedTime(Instant lastAccessedTime) {
+		setLastAccessedTime(lastAccessedTime.toEpochMilli());
+	}
+
+	/**
+	 * @param lastAccessedMillis the last accessed time in milliseconds since the epoch
+	 */
+	public void setLastAccessedTime(long lastAccessedMillis) {
 
-		this.accessedMillis = lastAccessedTime.toEpochMilli();
-		this.expireAt = Date
-				.from(lastAccessedTime.plus(Duration.ofSeconds(this.intervalSeconds)));
+		this.accessedMillis = lastAccessedMillis;
+		this.expireAtMillis = lastAccessedMillis
+				+ TimeUnit.SECONDS.toMillis(this.intervalSeconds);
+		flushImmediately();
 	}
 
 	public Duration getMaxInactiveInterval() {
@@ -119,9 +235,357 @@ public class CouchbaseSession implements Session {
 
 	public void setMaxInactiveInterval(Duration interval) {
 		this.intervalSeconds = interval.getSeconds();
+		this.expireAtMillis = this.accessedMillis
+				+ TimeUnit.SECONDS.toMillis(this.intervalSeconds);
+		flushImmediately();
 	}
 
+	/**
+	 * @return when the session expires
+	 * @deprecated allocates a {@link Date} on every call, use
+	 *     {@link #getExpireAtMillis()}
+	 */
+	@Deprecated
+	public Date getExpireAt() {
+		return new Date(this.expireAtMillis);
+	}
+
+	/**
+	 * @param expireAt when the session expires
+	 * @deprecated use {@link #setExpireAtMillis(long)}
+	 */
+	@Deprecated
+	public void setExpireAt(Date expireAt) {
+		this.expireAtMillis = expireAt.getTime();
+	}
+
+	/**
+	 * @return when the session expires, in milliseconds since the epoch
+	 */
+	public long getExpireAtMillis() {
+		return this.expireAtMillis;
+	}
+
+	/**
+	 * @param expireAtMillis when the session expires, in milliseconds since the epoch
+	 */
+	public void setExpireAtMillis(long expireAtMillis) {
+		this.expireAtMillis = expireAtMillis;
+	}
+
+	/**
+	 * Checks the expiration time against the clock set with {@link #setClock(Clock)},
+	 * {@link Clock#systemUTC()} by default.
+	 */
 	public boolean isExpired() {
-		return this.intervalSeconds >= 0 && new Date().after(this.expireAt);
+		return this.intervalSeconds >= 0 && this.clock.millis() > this.expireAtMillis;
+	}
+
+	/**
+	 * @return {@code true} if the session has never been written to Couchbase
+	 */
+	public boolean isNew() {
+		return this.isNew;
+	}
+
+	/**
+	 * @return {@code true} if nothing but the last accessed time changed since the
+	 *     session was loaded or last saved
+	 */
+	public boolean isAccessedOnly() {
+		return !this.isNew && this.id.equals(this.originalId)
+				&& !isMaxInactiveIntervalChanged() && this.changedAttributes.isEmpty()
+				&& this.removedAttributes.isEmpty();
+	}
+
+	/**
+	 * @return {@code true} if the max inactive interval changed since the session was
+	 *     loaded or last saved
+	 */
+	public boolean isMaxInactiveIntervalChanged() {
+		return this.isNew || this.intervalSeconds != this.persistedIntervalSeconds;
+	}
+
+	/**
+	 * @return names of the attributes added or replaced since the session was loaded or
+	 *     last saved
+	 */
+	public Set<String> getChangedAttributeNames() {
+		return Collections.unmodifiableSet(this.changedAttributes);
+	}
+
+	/**
+	 * @return names of the stored attributes removed since the session was loaded or last
+	 *     saved
+	 */
+	public Set<String> getRemovedAttributeNames() {
+		return Collections.unmodifiableSet(this.removedAttributes);
+	}
+
+	/**
+	 * @return {@code true} if the session is stored under its current id
+	 */
+	boolean isStored() {
+		return !this.isNew && this.id.equals(this.originalId);
+	}
+
+	/**
+	 * @return when the session expires according to the stored last accessed time and
+	 *     max inactive interval
+	 */
+	long getPersistedExpireAt() {
+		return this.persistedAccessedMillis
+				+ TimeUnit.SECONDS.toMillis(this.persistedIntervalSeconds);
+	}
+
+	/**
+	 * @param thresholdSeconds the age the stored last accessed time must reach to be
+	 *     written again
+	 * @return {@code true} if the stored last accessed time is more recent than the
+	 *     threshold, or the current one
+	 */
+	boolean isRecentlyAccessed(int thresholdSeconds) {
+		long age = this.accessedMillis - this.persistedAccessedMillis;
+		return age == 0 || age < TimeUnit.SECONDS.toMillis(thresholdSeconds);
+	}
+
+	/**
+	 * @return the id the session is currently stored under, which differs from
+	 *     {@link #getId()} after {@link #changeSessionId()} until the session is saved
+	 */
+	String getOriginalId() {
+		return this.originalId;
+	}
+
+	/**
+	 * @return the CAS of the document the session was loaded from or last saved to,
+	 *     {@code 0} if unknown
+	 */
+	long getCas() {
+		return this.cas;
+	}
+
+	void setCas(long cas) {
+		this.cas = cas;
+	}
+
+	/**
+	 * @return the principal name stored with the session, {@code null} if there is none
+	 *     or the converter doesn't read it
+	 */
+	@Nullable
+	String getStoredPrincipal() {
+		return this.storedPrincipal;
+	}
+
+	/**
+	 * Sets the principal stored with the session, which is also taken as its resolved
+	 * principal unless it is {@code null} or an attribute it is resolved from changed.
+	 */
+	void setStoredPrincipal(@Nullable String storedPrincipal) {
+		this.storedPrincipal = storedPrincipal;
+		if (storedPrincipal != null && !isPrincipalAttributeChanged()) {
+			this.principal = storedPrincipal;
+			this.principalResolved = true;
+		}
+	}
+
+	/**
+	 * @param resolver resolves the principal if it isn't known yet
+	 * @return the principal of the session
+	 */
+	@Nullable
+	String resolvePrincipal(PrincipalNameResolver resolver) {
+		if (!this.principalResolved) {
+			this.principal = resolver.resolvePrincipal(this);
+			this.principalResolved = true;
+		}
+		return this.principal;
+	}
+
+	private boolean isPrincipalAttributeChanged() {
+		for (String attributeName : PRINCIPAL_ATTRIBUTES) {
+			if (this.changedAttributes.contains(attributeName)
+					|| this.removedAttributes.contains(attributeName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void forgetPrincipal(String attributeName) {
+		if (PRINCIPAL_ATTRIBUTES.contains(attributeName)) {
+			this.principalResolved = false;
+			this.principal = null;
+		}
+	}
+
+	/**
+	 * @return {@code true} if all attributes are still serialized or immutable, so that
+	 *     copies of the session don't share any mutable state
+	 */
+	boolean isShareable() {
+		for (Object value : this.attrs.values()) {
+			if (!(value instanceof SerializedAttribute || value instanceof String)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return rough estimate of the memory taken by the session, in bytes
+	 */
+	long estimateSize() {
+		long size = 256;
+		for (Map.Entry<String, Object> entry : this.attrs.entrySet()) {
+			size += 64 + 2 * entry.getKey().length();
+			Object value = entry.getValue();
+			if (value instanceof SerializedAttribute) {
+				size += ((SerializedAttribute) value).serializedValue.length;
+			}
+			else if (value instanceof String) {
+				size += 2 * ((String) value).length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return a session with the same id, state and tracked changes. Attribute values
+	 *     are shared, see {@link #isShareable()}
+	 */
+	CouchbaseSession copy() {
+		CouchbaseSession copy = new CouchbaseSession(this.id, this.intervalSeconds);
+		copy.createdMillis = this.createdMillis;
+		copy.accessedMillis = this.accessedMillis;
+		copy.expireAtMillis = this.expireAtMillis;
+		copy.attrs.putAll(this.attrs);
+		copy.originalId = this.originalId;
+		copy.isNew = this.isNew;
+		copy.persistedAccessedMillis = this.persistedAccessedMillis;
+		copy.persistedIntervalSeconds = this.persistedIntervalSeconds;
+		copy.cas = this.cas;
+		copy.storedPrincipal = this.storedPrincipal;
+		copy.idGenerator = this.idGenerator;
+		copy.clock = this.clock;
+		copy.principal = this.principal;
+		copy.principalResolved = this.principalResolved;
+		copy.changedAttributes.addAll(this.changedAttributes);
+		copy.addedAttributes.addAll(this.addedAttributes);
+		copy.removedAttributes.addAll(this.removedAttributes);
+		return copy;
+	}
+
+	/**
+	 * Rebases the changes of this session onto a more recent version of the stored
+	 * session: attributes changed or removed by this session keep their value, all other
+	 * attributes and the max inactive interval, unless it changed, are taken from the
+	 * stored session.
+	 *
+	 * @param stored the session as currently stored
+	 */
+	void merge(CouchbaseSession stored) {
+		this.attrs.keySet().removeIf(name -> !this.changedAttributes.contains(name)
+				&& !stored.attrs.containsKey(name));
+		stored.attrs.forEach((name, value) -> {
+			if (!this.changedAttributes.contains(name)
+					&& !this.removedAttributes.contains(name)) {
+				this.attrs.put(name, value);
+			}
+		});
+		if (!isMaxInactiveIntervalChanged()) {
+			this.intervalSeconds = stored.intervalSeconds;
+			this.persistedIntervalSeconds = stored.intervalSeconds;
+		}
+		this.accessedMillis = Math.max(this.accessedMillis, stored.accessedMillis);
+		this.expireAtMillis = this.accessedMillis
+				+ TimeUnit.SECONDS.toMillis(this.intervalSeconds);
+		this.cas = stored.cas;
+		this.storedPrincipal = stored.storedPrincipal;
+		if (!isPrincipalAttributeChanged()) {
+			this.principal = stored.principal;
+			this.principalResolved = stored.principalResolved;
+		}
+	}
+
+	/**
+	 * @param saveMode which attributes are written when the session is saved
+	 */
+	void setSaveMode(SaveMode saveMode) {
+		this.saveMode = saveMode;
+	}
+
+	/**
+	 * @param clock the clock expiry is checked against
+	 */
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * @param idGenerator generates the id given by {@link #changeSessionId()}
+	 */
+	void setIdGenerator(SessionIdGenerator idGenerator) {
+		this.idGenerator = idGenerator;
+	}
+
+	/**
+	 * @param flushAction saves the session right after each change, as with
+	 *     {@link org.springframework.session.FlushMode#IMMEDIATE}, or {@code null} to
+	 *     save it only when requested
+	 */
+	void setFlushAction(@Nullable Consumer<CouchbaseSession> flushAction) {
+		this.flushAction = flushAction;
+	}
+
+	/**
+	 * Reports all attributes as changed if the session is saved with
+	 * {@link SaveMode#ALWAYS}, so that they are all written.
+	 */
+	void prepareSave() {
+		if (this.saveMode == SaveMode.ALWAYS) {
+			this.changedAttributes.addAll(this.attrs.keySet());
+		}
+	}
+
+	private void flushImmediately() {
+		if (this.flushAction != null) {
+			this.flushAction.accept(this);
+		}
+	}
+
+	/**
+	 * Marks the current state of the session as the one stored in Couchbase, resetting
+	 * the tracked attribute changes.
+	 */
+	void markPersisted() {
+		this.isNew = false;
+		this.originalId = this.id;
+		this.persistedAccessedMillis = this.accessedMillis;
+		this.persistedIntervalSeconds = this.intervalSeconds;
+		this.changedAttributes.clear();
+		this.addedAttributes.clear();
+		this.removedAttributes.clear();
+	}
+
+	/**
+	 * Attribute value which has not been deserialized yet.
+	 */
+	private static final class SerializedAttribute {
+
+		private final byte[] serializedValue;
+		private final Converter<byte[], Object> deserializer;
+
+		private SerializedAttribute(byte[] serializedValue,
+				Converter<byte[], Object> deserializer) {
+			this.serializedValue = serializedValue;
+			this.deserializer = deserializer;
+		}
+
+		@Nullable
+		private Object deserialize() {
+			return this.deserializer.convert(this.serializedValue);
+		}
 	}
 }
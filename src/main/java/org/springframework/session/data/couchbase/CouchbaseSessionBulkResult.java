@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk operation on sessions. Ids which are neither in
+ * {@link #getSessions()} nor in {@link #getErrors()} didn't exist or expired.
+ */
+public final class CouchbaseSessionBulkResult {
+
+	private final Map<String, CouchbaseSession> sessions;
+	private final Map<String, Throwable> errors;
+
+	public CouchbaseSessionBulkResult(Map<String, CouchbaseSession> sessions,
+			Map<String, Throwable> errors) {
+		this.sessions = Collections.unmodifiableMap(sessions);
+		this.errors = Collections.unmodifiableMap(errors);
+	}
+
+	/**
+	 * @return the sessions found, or deleted, by id
+	 */
+	public Map<String, CouchbaseSession> getSessions() {
+		return this.sessions;
+	}
+
+	/**
+	 * @return the failure of every id the operation failed for
+	 */
+	public Map<String, Throwable> getErrors() {
+		return this.errors;
+	}
+
+	public boolean hasErrors() {
+		return !this.errors.isEmpty();
+	}
+}
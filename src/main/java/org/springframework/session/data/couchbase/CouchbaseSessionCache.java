@@ -0,0 +1,281 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+/**
+ * In-memory cache of the sessions read by a {@link CouchbaseOperationsSessionRepository},
+ * keyed by session id together with the CAS of the document they were read from. A
+ * cached session is only used after checking that the CAS of the stored document is
+ * unchanged, which takes a metadata lookup instead of fetching and decoding the whole
+ * document.
+ * <p>
+ * The cache holds at most {@code maxEntries} sessions taking roughly {@code maxBytes}
+ * bytes. It is split into stripes by session id, each guarded by its own lock and
+ * holding an even share of both limits, so that concurrent requests for different
+ * sessions rarely wait for each other. Every stripe evicts its least recently used
+ * sessions first; there is no frequency based admission, so a burst of sessions read
+ * once can push out frequently used ones. Only sessions whose attributes are still
+ * serialized are cached, every caller gets its own copy.
+ * <p>
+ * Every lookup counts as a single hit or miss.
+ */
+public final class CouchbaseSessionCache {
+
+	private final Stripe[] stripes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public CouchbaseSessionCache(int maxEntries, long maxBytes) {
+		this(maxEntries, maxBytes, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param maxStripes upper bound of the number of stripes, which is rounded down to a
+	 *     power of two no larger than {@code maxEntries}
+	 */
+	CouchbaseSessionCache(int maxEntries, long maxBytes, int maxStripes) {
+		Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+		Assert.isTrue(maxBytes > 0, "maxBytes must be positive");
+		Assert.isTrue(maxStripes > 0, "maxStripes must be positive");
+		int stripeCount = Integer.highestOneBit(Math.min(maxStripes, maxEntries));
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			this.stripes[i] = new Stripe(maxEntries / stripeCount,
+					Math.max(1, maxBytes / stripeCount));
+		}
+	}
+
+	/**
+	 * Starts a lookup.
+	 *
+	 * @param id the session id
+	 * @return the CAS of the cached session, or {@code null} if it isn't cached, which
+	 *     ends the lookup with a miss
+	 */
+	@Nullable
+	Long getCas(String id) {
+		Long cas = stripe(id).getCas(id);
+		if (cas == null) {
+			this.misses.increment();
+		}
+		return cas;
+	}
+
+	/**
+	 * Ends a lookup started with {@link #getCas(String)}.
+	 *
+	 * @param id the session id
+	 * @param cas the current CAS of the stored document
+	 * @return a copy of the cached session if it was read from the document with the
+	 *     given CAS, otherwise {@code null} and the stale session is dropped
+	 */
+	@Nullable
+	CouchbaseSession get(String id, long cas) {
+		Entry entry = stripe(id).getOrInvalidate(id, cas);
+		if (entry == null) {
+			this.misses.increment();
+			return null;
+		}
+		this.hits.increment();
+		return entry.session.copy();
+	}
+
+	/**
+	 * Ends a lookup started with {@link #getCas(String)} whose document no longer exists,
+	 * dropping the cached session.
+	 *
+	 * @param id the session id
+	 */
+	void missing(String id) {
+		invalidate(id);
+		this.misses.increment();
+	}
+
+	/**
+	 * Caches a copy of the session if none of its attributes has been deserialized yet.
+	 */
+	void put(CouchbaseSession session) {
+		Stripe stripe = stripe(session.getId());
+		if (!session.isShareable() || session.getCas() == 0) {
+			stripe.invalidate(session.getId());
+			return;
+		}
+		stripe.put(session.getId(), new Entry(session.copy()));
+	}
+
+	/**
+	 * Records the new last accessed time of a cached session which was only touched,
+	 * provided the cached session is the one the touch was based on.
+	 */
+	void touch(String id, long previousCas, long cas, long accessedMillis) {
+		stripe(id).touch(id, previousCas, cas, accessedMillis);
+	}
+
+	void invalidate(String id) {
+		stripe(id).invalidate(id);
+	}
+
+	private Stripe stripe(String id) {
+		int hash = id.hashCode();
+		return this.stripes[(hash ^ (hash >>> 16)) & (this.stripes.length - 1)];
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : this.stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	public long getBytes() {
+		long bytes = 0;
+		for (Stripe stripe : this.stripes) {
+			bytes += stripe.getBytes();
+		}
+		return bytes;
+	}
+
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "CouchbaseSessionCache [size=" + size() + ", bytes=" + getBytes()
+				+ ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions="
+				+ getEvictions() + "]";
+	}
+
+	/**
+	 * Least recently used sessions of a share of the ids.
+	 */
+	private final class Stripe {
+
+		private final int maxEntries;
+		private final long maxBytes;
+		private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16,
+				0.75f, true);
+		private long bytes;
+
+		private Stripe(int maxEntries, long maxBytes) {
+			this.maxEntries = maxEntries;
+			this.maxBytes = maxBytes;
+		}
+
+		@Nullable
+		synchronized Long getCas(String id) {
+			Entry entry = this.entries.get(id);
+			return entry != null ? entry.cas : null;
+		}
+
+		@Nullable
+		synchronized Entry getOrInvalidate(String id, long cas) {
+			Entry entry = this.entries.get(id);
+			if (entry != null && entry.cas != cas) {
+				invalidate(id);
+				return null;
+			}
+			return entry;
+		}
+
+		synchronized void put(String id, Entry entry) {
+			if (entry.size > this.maxBytes) {
+				invalidate(id);
+				return;
+			}
+			Entry previous = this.entries.put(id, entry);
+			if (previous != null) {
+				this.bytes -= previous.size;
+			}
+			this.bytes += entry.size;
+			evict();
+		}
+
+		synchronized void touch(String id, long previousCas, long cas,
+				long accessedMillis) {
+			Entry entry = this.entries.get(id);
+			if (entry == null) {
+				return;
+			}
+			if (entry.cas != previousCas) {
+				invalidate(id);
+				return;
+			}
+			entry.session.setLastAccessedTime(accessedMillis);
+			entry.session.markPersisted();
+			entry.session.setCas(cas);
+			entry.cas = cas;
+		}
+
+		synchronized void invalidate(String id) {
+			Entry entry = this.entries.remove(id);
+			if (entry != null) {
+				this.bytes -= entry.size;
+			}
+		}
+
+		private void evict() {
+			Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet()
+					.iterator();
+			while ((this.entries.size() > this.maxEntries || this.bytes > this.maxBytes)
+					&& eldest.hasNext()) {
+				this.bytes -= eldest.next().getValue().size;
+				eldest.remove();
+				CouchbaseSessionCache.this.evictions.increment();
+			}
+		}
+
+		synchronized int size() {
+			return this.entries.size();
+		}
+
+		synchronized long getBytes() {
+			return this.bytes;
+		}
+	}
+
+	private static final class Entry {
+
+		private final CouchbaseSession session;
+		private final long size;
+		private long cas;
+
+		private Entry(CouchbaseSession session) {
+			this.session = session;
+			this.size = session.estimateSize();
+			this.cas = session.getCas();
+		}
+	}
+}
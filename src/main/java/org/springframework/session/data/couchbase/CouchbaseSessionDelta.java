@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * Partial update of a session document. Holds the sub-document paths which have to be
+ * upserted or removed to bring the stored document in line with the session, together
+ * with the expiry the document should carry afterwards.
+ */
+public final class CouchbaseSessionDelta {
+
+	/**
+	 * Couchbase limits the number of paths a single sub-document mutation may contain.
+	 */
+	public static final int MAX_OPERATIONS = 16;
+
+	private final String id;
+	private int expiry;
+	private final Map<String, Object> upserts = new LinkedHashMap<>();
+	private final Set<String> removals = new LinkedHashSet<>();
+
+	public CouchbaseSessionDelta(String id, int expiry) {
+		this.id = id;
+		this.expiry = expiry;
+	}
+
+	/**
+	 * Escapes a single document field name so it can be used as a sub-document path
+	 * element, even if it contains dots or brackets.
+	 *
+	 * @param fieldName the raw field name
+	 * @return the escaped path element
+	 */
+	public static String escape(String fieldName) {
+		return "`" + fieldName.replace("`", "``") + "`";
+	}
+
+	public CouchbaseSessionDelta upsert(String path, @Nullable Object value) {
+		this.removals.remove(path);
+		this.upserts.put(path, value);
+		return this;
+	}
+
+	public CouchbaseSessionDelta remove(String path) {
+		this.upserts.remove(path);
+		this.removals.add(path);
+		return this;
+	}
+
+	/**
+	 * Applies the changes of a later delta of the same session on top of this one,
+	 * including its expiry.
+	 *
+	 * @param later the later delta
+	 * @return this delta
+	 */
+	public CouchbaseSessionDelta merge(CouchbaseSessionDelta later) {
+		this.expiry = later.expiry;
+		later.upserts.forEach(this::upsert);
+		later.removals.forEach(this::remove);
+		return this;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	public int getExpiry() {
+		return this.expiry;
+	}
+
+	public Map<String, Object> getUpserts() {
+		return Collections.unmodifiableMap(this.upserts);
+	}
+
+	public Set<String> getRemovals() {
+		return Collections.unmodifiableSet(this.removals);
+	}
+
+	/**
+	 * @return number of sub-document operations needed to apply this delta
+	 */
+	public int size() {
+		return this.upserts.size() + this.removals.size();
+	}
+}
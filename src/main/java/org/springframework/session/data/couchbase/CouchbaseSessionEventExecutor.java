@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Pool of threads on which {@link CouchbaseOperationsSessionRepository} publishes session
+ * events, so that slow listeners don't add to the latency of requests. Events wait in a
+ * queue of at most {@code queueCapacity} events, and the {@link EventOverflowPolicy}
+ * decides what happens to events raised while it is full.
+ * <p>
+ * Listeners receive a copy of the session taken when the event was raised. Events
+ * still queued when the repository is destroyed are published by the remaining threads,
+ * which don't keep the JVM alive.
+ */
+public final class CouchbaseSessionEventExecutor {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CouchbaseSessionEventExecutor.class);
+
+	private final ThreadPoolExecutor executor;
+	private final EventOverflowPolicy overflowPolicy;
+
+	private final LongAdder queuedEvents = new LongAdder();
+	private final LongAdder callerRunsEvents = new LongAdder();
+	private final LongAdder discardedEvents = new LongAdder();
+
+	public CouchbaseSessionEventExecutor(int threads, int queueCapacity,
+			EventOverflowPolicy overflowPolicy) {
+		Assert.isTrue(threads > 0, "threads must be positive");
+		Assert.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+		Assert.notNull(overflowPolicy, "overflowPolicy cannot be null");
+		this.overflowPolicy = overflowPolicy;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+					Thread thread = new Thread(runnable,
+							"couchbase-session-events-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, (task, executor) -> {
+					throw new RejectedExecutionException();
+				});
+	}
+
+	/**
+	 * Queues the publication of an event, or applies the overflow policy if the queue is
+	 * full or the executor is stopped.
+	 */
+	void execute(Runnable publication) {
+		try {
+			this.executor.execute(publication);
+			this.queuedEvents.increment();
+		}
+		catch (RejectedExecutionException ex) {
+			if (this.overflowPolicy == EventOverflowPolicy.CALLER_RUNS) {
+				this.callerRunsEvents.increment();
+				publication.run();
+			}
+			else {
+				this.discardedEvents.increment();
+				logger.debug("Session event queue full, discarding an event");
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting events, those already queued are still published.
+	 */
+	void stop() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * @return number of events published on a pool thread
+	 */
+	public long getQueuedEvents() {
+		return this.queuedEvents.sum();
+	}
+
+	/**
+	 * @return number of events published on the thread which raised them because the
+	 *     queue was full
+	 */
+	public long getCallerRunsEvents() {
+		return this.callerRunsEvents.sum();
+	}
+
+	/**
+	 * @return number of events dropped because the queue was full
+	 */
+	public long getDiscardedEvents() {
+		return this.discardedEvents.sum();
+	}
+
+	public int getQueueSize() {
+		return this.executor.getQueue().size();
+	}
+
+	@Override
+	public String toString() {
+		return "CouchbaseSessionEventExecutor [overflowPolicy=" + this.overflowPolicy
+				+ ", queuedEvents=" + getQueuedEvents() + ", callerRunsEvents="
+				+ getCallerRunsEvents() + ", discardedEvents=" + getDiscardedEvents()
+				+ ", queueSize=" + getQueueSize() + "]";
+	}
+}
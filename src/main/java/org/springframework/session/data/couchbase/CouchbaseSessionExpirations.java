@@ -0,0 +1,329 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.springframework.session.data.couchbase.CBSessionUtils.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+
+import rx.Observable;
+
+/**
+ * Index of sessions by the minute they expire in, through which
+ * {@link CouchbaseOperationsSessionRepository} removes expired sessions and publishes
+ * their {@code SessionExpiredEvent}, even if they are never requested again.
+ * <p>
+ * Every minute has a slot, stored in a few documents holding the ids of the sessions
+ * expiring during that minute. A saved session is added to the slot of its new
+ * expiration time, but not removed from the previous one: sessions found in a slot
+ * which didn't expire are skipped. Once a minute the slots which are due are processed.
+ * A node claims a slot by inserting a claim document, so that every slot is processed
+ * by a single node of the cluster, and hands the ids it holds to the repository in
+ * batches. The slot documents are removed once all batches are done. The claim is a
+ * lease renewed after every batch: if the node fails or dies before the end, the claim
+ * is released or expires, and the slot is processed again on a later run.
+ */
+public final class CouchbaseSessionExpirations {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CouchbaseSessionExpirations.class);
+
+	private static final String KEY_PREFIX = "spring:session:expirations:";
+	private static final long SLOT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	/**
+	 * Number of documents a slot is spread over, so that the sessions saved during a
+	 * minute don't all update the same document.
+	 */
+	private static final int SLOT_SHARDS = 8;
+	/**
+	 * Number of past slots looked at on every run, so that slots missed while no node
+	 * was running are still processed. Older slots are left to the expiry of the session
+	 * documents.
+	 */
+	private static final int CATCH_UP_SLOTS = 5;
+	/**
+	 * How long slot documents are kept after their slot is due.
+	 */
+	private static final long SLOT_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	/**
+	 * Delay after the start of a minute before its slot is processed, leaving time for
+	 * the last sessions saved into it to be indexed.
+	 */
+	private static final long PROCESSING_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+	/**
+	 * How long a claim lasts without being renewed, short enough for the slot of a dead
+	 * node to be processed again within {@link #CATCH_UP_SLOTS} runs.
+	 */
+	private static final long CLAIM_LEASE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+	private static final int BATCH_SIZE = 100;
+	private static final String OWNER_FIELD = "owner";
+
+	private final Bucket bucket;
+	private final String keyPrefix;
+	private ToIntFunction<List<String>> expirer;
+	private ScheduledExecutorService processor;
+
+	private final LongAdder indexedSessions = new LongAdder();
+	private final LongAdder failedIndexes = new LongAdder();
+	private final LongAdder processedSlots = new LongAdder();
+	private final LongAdder expiredSessions = new LongAdder();
+
+	/**
+	 * @param bucket the bucket the sessions are stored in
+	 * @param namespace distinguishes the slots of applications sharing the bucket,
+	 *     usually the session document type value
+	 */
+	public CouchbaseSessionExpirations(Bucket bucket, String namespace) {
+		Assert.notNull(bucket, "bucket cannot be null");
+		Assert.hasText(namespace, "namespace cannot be empty");
+		this.bucket = bucket;
+		this.keyPrefix = KEY_PREFIX + namespace + ":";
+	}
+
+	/**
+	 * Starts processing due slots at the start of every minute.
+	 *
+	 * @param expirer removes those of the given sessions which expired and returns
+	 *     their number
+	 */
+	synchronized void start(ToIntFunction<List<String>> expirer) {
+		Assert.state(this.processor == null, "Expiration processing is already started");
+		this.expirer = expirer;
+		this.processor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "couchbase-session-expirations");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long now = System.currentTimeMillis();
+		this.processor.scheduleAtFixedRate(this::processSafely,
+				SLOT_MILLIS - now % SLOT_MILLIS + PROCESSING_DELAY_MILLIS, SLOT_MILLIS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops processing due slots.
+	 */
+	synchronized void stop() {
+		if (this.processor != null) {
+			this.processor.shutdownNow();
+			this.processor = null;
+		}
+	}
+
+	/**
+	 * Adds the session to the slot of its expiration time, unless it is already stored
+	 * in that slot. The slot is updated asynchronously.
+	 */
+	void index(CouchbaseSession session) {
+
+		if (session.getMaxInactiveInterval().isNegative()) {
+			return;
+		}
+
+		long slot = slotOf(session.getExpireAtMillis());
+		if (session.isStored() && slot == slotOf(session.getPersistedExpireAt())) {
+			return;
+		}
+
+		String key = shardKey(slot,
+				Math.floorMod(session.getId().hashCode(), SLOT_SHARDS));
+		this.bucket.async().mutateIn(key)
+				.upsert(CouchbaseSessionDelta.escape(session.getId()), true)
+				.upsertDocument(true)
+				.withExpiry(toDocumentExpiry(slot + SLOT_RETENTION_MILLIS)).execute()
+				.subscribe(fragment -> this.indexedSessions.increment(), ex -> {
+					this.failedIndexes.increment();
+					logger.warn("Failed to add session " + session.getId()
+							+ " to expiration slot " + key, ex);
+				});
+	}
+
+	/**
+	 * Processes the slots which are due and were not claimed yet.
+	 *
+	 * @param now the current time
+	 * @return the number of expired sessions
+	 */
+	int process(long now) {
+
+		long dueSlot = now - now % SLOT_MILLIS;
+		int expired = 0;
+		for (long slot = dueSlot - (CATCH_UP_SLOTS - 1) * SLOT_MILLIS; slot <= dueSlot;
+				slot += SLOT_MILLIS) {
+			expired += processSlot(slot);
+		}
+		return expired;
+	}
+
+	private void processSafely() {
+		try {
+			process(System.currentTimeMillis());
+		}
+		catch (RuntimeException ex) {
+			logger.error("Failed to process expired sessions", ex);
+		}
+	}
+
+	private int processSlot(long slot) {
+
+		List<JsonDocument> shards = Observable.range(0, SLOT_SHARDS)
+				.flatMap(shard -> this.bucket.async().get(shardKey(slot, shard)))
+				.toList().toBlocking().single();
+		String claimKey = this.keyPrefix + slot + ":claim";
+		String owner = UUID.randomUUID().toString();
+		if (shards.isEmpty() || !claim(claimKey, owner)) {
+			return 0;
+		}
+
+		List<String> ids = new ArrayList<>();
+		shards.forEach(shard -> ids.addAll(shard.content().getNames()));
+		int expired = 0;
+		try {
+			for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+				expired += this.expirer
+						.applyAsInt(ids.subList(i, Math.min(ids.size(), i + BATCH_SIZE)));
+				if (!renew(claimKey, owner)) {
+					logger.warn("Lost the claim of expiration slot " + slot
+							+ ", leaving it to another node");
+					this.expiredSessions.add(expired);
+					return expired;
+				}
+			}
+
+			for (JsonDocument shard : shards) {
+				try {
+					// only if no session was added since it was read
+					this.bucket.remove(shard);
+				}
+				catch (CASMismatchException ex) {
+					// processed again once the claim is released
+				}
+				catch (DocumentDoesNotExistException ex) {
+					// expired in the meantime
+				}
+			}
+		}
+		finally {
+			release(claimKey, owner);
+		}
+
+		this.processedSlots.increment();
+		this.expiredSessions.add(expired);
+		logger.debug("Processed expiration slot " + slot + ": " + ids.size()
+				+ " sessions, " + expired + " expired");
+		return expired;
+	}
+
+	/**
+	 * @return {@code true} if this node claimed the slot, {@code false} if another one
+	 *     holds it
+	 */
+	private boolean claim(String claimKey, String owner) {
+		try {
+			this.bucket.insert(JsonDocument.create(claimKey, claimExpiry(),
+					JsonObject.create().put(OWNER_FIELD, owner)));
+			return true;
+		}
+		catch (DocumentAlreadyExistsException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Extends the claim, provided it still belongs to this node.
+	 *
+	 * @return {@code false} if the claim expired and may have been taken by another node
+	 */
+	private boolean renew(String claimKey, String owner) {
+		JsonDocument claim = this.bucket.getAndTouch(claimKey, claimExpiry());
+		return claim != null && owner.equals(claim.content().getString(OWNER_FIELD));
+	}
+
+	/**
+	 * Removes the claim, unless it expired and was taken by another node in the meantime.
+	 */
+	private void release(String claimKey, String owner) {
+		try {
+			JsonDocument claim = this.bucket.get(claimKey);
+			if (claim != null && owner.equals(claim.content().getString(OWNER_FIELD))) {
+				this.bucket.remove(claim);
+			}
+		}
+		catch (RuntimeException ex) {
+			// expires by itself
+			logger.debug("Failed to release expiration claim " + claimKey, ex);
+		}
+	}
+
+	private static int claimExpiry() {
+		return toDocumentExpiry(System.currentTimeMillis() + CLAIM_LEASE_MILLIS);
+	}
+
+	/**
+	 * @return the end of the minute the time falls in, which is when the slot holding
+	 *     sessions expiring at that time is due
+	 */
+	private static long slotOf(long expireAt) {
+		long remainder = expireAt % SLOT_MILLIS;
+		return remainder == 0 ? expireAt : expireAt - remainder + SLOT_MILLIS;
+	}
+
+	private String shardKey(long slot, int shard) {
+		return this.keyPrefix + slot + ":" + shard;
+	}
+
+	public long getIndexedSessions() {
+		return this.indexedSessions.sum();
+	}
+
+	public long getFailedIndexes() {
+		return this.failedIndexes.sum();
+	}
+
+	public long getProcessedSlots() {
+		return this.processedSlots.sum();
+	}
+
+	public long getExpiredSessions() {
+		return this.expiredSessions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "CouchbaseSessionExpirations [indexedSessions=" + getIndexedSessions()
+				+ ", failedIndexes=" + getFailedIndexes() + ", processedSlots="
+				+ getProcessedSlots() + ", expiredSessions=" + getExpiredSessions()
+				+ "]";
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * Page of the sessions found by an index, ordered by session id. The next page starts
+ * after the {@link #getNextPageKey() key} of this one, so pages stay consistent while
+ * sessions are added or removed.
+ */
+public final class CouchbaseSessionPage {
+
+	private final List<CouchbaseSession> sessions;
+	@Nullable
+	private final String nextPageKey;
+
+	public CouchbaseSessionPage(List<CouchbaseSession> sessions,
+			@Nullable String nextPageKey) {
+		this.sessions = Collections.unmodifiableList(sessions);
+		this.nextPageKey = nextPageKey;
+	}
+
+	/**
+	 * @return the sessions of this page, which may hold fewer sessions than the page
+	 *     size even if it isn't the last one, since expired sessions are left out
+	 */
+	public List<CouchbaseSession> getSessions() {
+		return this.sessions;
+	}
+
+	/**
+	 * @return the key to pass to get the next page, {@code null} for the last page
+	 */
+	@Nullable
+	public String getNextPageKey() {
+		return this.nextPageKey;
+	}
+
+	public boolean hasNextPage() {
+		return this.nextPageKey != null;
+	}
+}
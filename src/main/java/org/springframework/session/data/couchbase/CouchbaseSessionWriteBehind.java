@@ -0,0 +1,476 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.JsonDocument;
+
+/**
+ * Queue of session writes which {@link CouchbaseOperationsSessionRepository} performs in
+ * the background, so that saving a session doesn't wait for Couchbase. Repeated saves of
+ * the same session are coalesced, and all queued sessions are written in a batch every
+ * {@code flushIntervalMillis}. Writes of a session are always applied in the order it
+ * was saved.
+ * <p>
+ * At most {@code maxPendingSessions} sessions are queued, further sessions are written
+ * synchronously. Reading or deleting a session first waits for its queued writes, and
+ * the remaining writes are flushed when the repository is destroyed.
+ */
+public final class CouchbaseSessionWriteBehind {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(CouchbaseSessionWriteBehind.class);
+
+	private final int maxPendingSessions;
+	private final long flushIntervalMillis;
+	private final LinkedHashMap<String, PendingSession> pending = new LinkedHashMap<>();
+	private final Map<String, CompletableFuture<Void>> flushing = new ConcurrentHashMap<>();
+	private ToIntFunction<List<PendingSession>> writer;
+	private ScheduledExecutorService flusher;
+
+	private final LongAdder queuedWrites = new LongAdder();
+	private final LongAdder coalescedWrites = new LongAdder();
+	private final LongAdder synchronousWrites = new LongAdder();
+	private final LongAdder flushes = new LongAdder();
+	private final LongAdder writtenSessions = new LongAdder();
+	private final LongAdder failedSessions = new LongAdder();
+	private final LongAdder flushNanos = new LongAdder();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+
+	public CouchbaseSessionWriteBehind(int maxPendingSessions, long flushIntervalMillis) {
+		Assert.isTrue(maxPendingSessions > 0, "maxPendingSessions must be positive");
+		Assert.isTrue(flushIntervalMillis > 0, "flushIntervalMillis must be positive");
+		this.maxPendingSessions = maxPendingSessions;
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Starts flushing queued sessions in the background.
+	 *
+	 * @param writer writes a batch of sessions and returns the number of sessions which
+	 *     couldn't be written
+	 */
+	synchronized void start(ToIntFunction<List<PendingSession>> writer) {
+		Assert.state(this.flusher == null, "Write-behind is already started");
+		this.writer = writer;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "couchbase-session-write-behind");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.flusher.scheduleWithFixedDelay(this::flushSafely, this.flushIntervalMillis,
+				this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background flushes and writes all queued sessions.
+	 */
+	void stop() {
+		ScheduledExecutorService flusher;
+		synchronized (this) {
+			flusher = this.flusher;
+			this.flusher = null;
+		}
+		if (flusher == null) {
+			return;
+		}
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(this.flushIntervalMillis * 10,
+					TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * Queues a write of a session, or performs it right away if the queue is full or
+	 * not started.
+	 *
+	 * @param write the write
+	 * @param removedId id the session was stored under before its id changed, whose
+	 *     document has to be removed
+	 */
+	void submit(SessionWrite write, @Nullable String removedId) {
+
+		String id = write.getId();
+		Flush flush;
+		synchronized (this) {
+			if (removedId != null) {
+				// the old document is removed, and the new one written as a whole
+				this.pending.remove(removedId);
+			}
+			PendingSession session = this.pending.get(id);
+			if (session != null || (this.flusher != null
+					&& this.pending.size() < this.maxPendingSessions)) {
+				if (session == null) {
+					session = new PendingSession(id);
+					this.pending.put(id, session);
+				}
+				else {
+					this.coalescedWrites.increment();
+				}
+				session.add(write, removedId);
+				this.queuedWrites.increment();
+				return;
+			}
+			session = new PendingSession(id);
+			session.add(write, removedId);
+			flush = track(Collections.singletonList(session));
+		}
+
+		this.synchronousWrites.increment();
+		write(flush);
+	}
+
+	/**
+	 * Writes the queued changes of a session and waits until they are stored.
+	 */
+	void flush(String id) {
+		Flush flush = null;
+		synchronized (this) {
+			PendingSession session = this.pending.remove(id);
+			if (session != null) {
+				flush = track(Collections.singletonList(session));
+			}
+		}
+		if (flush != null) {
+			write(flush);
+		}
+		else {
+			awaitFlushing(id);
+		}
+	}
+
+	/**
+	 * Drops the queued changes of a session, waiting for those already being written.
+	 */
+	void discard(String id) {
+		synchronized (this) {
+			this.pending.remove(id);
+		}
+		awaitFlushing(id);
+	}
+
+	private void awaitFlushing(String id) {
+		CompletableFuture<Void> inFlight = this.flushing.get(id);
+		if (inFlight != null) {
+			inFlight.join();
+		}
+	}
+
+	/**
+	 * Writes all queued sessions and waits until they are stored.
+	 */
+	void flush() {
+		Flush flush;
+		synchronized (this) {
+			flush = track(new ArrayList<>(this.pending.values()));
+			this.pending.clear();
+		}
+		write(flush);
+	}
+
+	private void flushSafely() {
+		try {
+			flush();
+		}
+		catch (RuntimeException ex) {
+			logger.error("Failed to flush queued sessions", ex);
+		}
+	}
+
+	/**
+	 * Marks the sessions of a batch as being written. Called while holding the lock
+	 * under which they were taken off the queue, so that a session is always either
+	 * queued or being written until its write is stored, and {@link #flush(String)} and
+	 * {@link #discard(String)} can't miss it.
+	 */
+	private Flush track(List<PendingSession> batch) {
+		Flush flush = new Flush(batch);
+		for (PendingSession session : batch) {
+			CompletableFuture<Void> inFlight = this.flushing.put(session.getId(),
+					flush.done);
+			if (inFlight != null) {
+				flush.previous.add(inFlight);
+			}
+		}
+		return flush;
+	}
+
+	private void write(Flush flush) {
+
+		List<PendingSession> batch = flush.batch;
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		CompletableFuture<Void> done = flush.done;
+		// earlier writes of the same sessions have to be stored first
+		flush.previous.forEach(CompletableFuture::join);
+
+		long start = System.nanoTime();
+		try {
+			int failed = this.writer.applyAsInt(batch);
+			this.writtenSessions.add(batch.size() - failed);
+			this.failedSessions.add(failed);
+		}
+		catch (RuntimeException ex) {
+			this.failedSessions.add(batch.size());
+			throw ex;
+		}
+		finally {
+			for (PendingSession session : batch) {
+				this.flushing.remove(session.getId(), done);
+			}
+			done.complete(null);
+			long nanos = System.nanoTime() - start;
+			this.flushes.increment();
+			this.flushNanos.add(nanos);
+			this.maxFlushNanos.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	/**
+	 * @return number of sessions with queued writes
+	 */
+	public synchronized int getQueueDepth() {
+		return this.pending.size();
+	}
+
+	public long getQueuedWrites() {
+		return this.queuedWrites.sum();
+	}
+
+	/**
+	 * @return number of writes queued for a session which already had queued writes
+	 */
+	public long getCoalescedWrites() {
+		return this.coalescedWrites.sum();
+	}
+
+	/**
+	 * @return number of writes performed synchronously because the queue was full
+	 */
+	public long getSynchronousWrites() {
+		return this.synchronousWrites.sum();
+	}
+
+	public long getFlushes() {
+		return this.flushes.sum();
+	}
+
+	public long getWrittenSessions() {
+		return this.writtenSessions.sum();
+	}
+
+	public long getFailedSessions() {
+		return this.failedSessions.sum();
+	}
+
+	public long getFlushNanos() {
+		return this.flushNanos.sum();
+	}
+
+	public long getMaxFlushNanos() {
+		return this.maxFlushNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CouchbaseSessionWriteBehind [queueDepth=" + getQueueDepth()
+				+ ", queuedWrites=" + getQueuedWrites() + ", coalescedWrites="
+				+ getCoalescedWrites() + ", synchronousWrites=" + getSynchronousWrites()
+				+ ", flushes=" + getFlushes() + ", writtenSessions="
+				+ getWrittenSessions() + ", failedSessions=" + getFailedSessions()
+				+ ", flushNanos=" + getFlushNanos() + ", maxFlushNanos="
+				+ getMaxFlushNanos() + "]";
+	}
+
+	/**
+	 * Batch of sessions taken off the queue, and the writes of the same sessions it
+	 * waits for.
+	 */
+	private static final class Flush {
+
+		private final List<PendingSession> batch;
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		private final List<CompletableFuture<Void>> previous = new ArrayList<>();
+
+		private Flush(List<PendingSession> batch) {
+			this.batch = batch;
+		}
+	}
+
+	/**
+	 * Write of a session, either as a partial update or as a whole document.
+	 */
+	static final class SessionWrite {
+
+		private final String id;
+		@Nullable
+		private final CouchbaseSessionDelta delta;
+		@Nullable
+		private final Document<?> document;
+		@Nullable
+		private JsonDocument fallback;
+		private boolean stored;
+
+		private SessionWrite(String id, @Nullable CouchbaseSessionDelta delta,
+				@Nullable Document<?> document, @Nullable JsonDocument fallback,
+				boolean stored) {
+			this.id = id;
+			this.delta = delta;
+			this.document = document;
+			this.fallback = fallback;
+			this.stored = stored;
+		}
+
+		/**
+		 * @param fallback the whole session converted when it was saved, written if the
+		 *     partial update fails
+		 */
+		static SessionWrite delta(CouchbaseSessionDelta delta, JsonDocument fallback) {
+			return new SessionWrite(delta.getId(), delta, null, fallback, true);
+		}
+
+		/**
+		 * @param stored whether the session was already stored under the id of the
+		 *     document, in which case the document only replaces it and isn't written if
+		 *     the session was removed meanwhile
+		 */
+		static SessionWrite document(Document<?> document, boolean stored) {
+			return new SessionWrite(document.id(), null, document, null, stored);
+		}
+
+		/**
+		 * Appends the changes of a later partial update, whose document replaces the
+		 * fallback of this one.
+		 */
+		private void merge(SessionWrite later) {
+			this.delta.merge(later.delta);
+			this.fallback = later.fallback;
+		}
+
+		String getId() {
+			return this.id;
+		}
+
+		@Nullable
+		CouchbaseSessionDelta getDelta() {
+			return this.delta;
+		}
+
+		@Nullable
+		Document<?> getDocument() {
+			return this.document;
+		}
+
+		/**
+		 * @return {@code true} if the session was already stored, so that its document
+		 *     has to replace the stored one instead of creating it
+		 */
+		boolean isStored() {
+			return this.stored;
+		}
+
+		/**
+		 * @return the document written if the partial update fails, converted when the
+		 *     session was last saved
+		 */
+		@Nullable
+		JsonDocument getFallback() {
+			return this.fallback;
+		}
+	}
+
+	/**
+	 * Queued writes of a session, in the order they have to be applied, followed by the
+	 * removal of the documents the session was stored under before its id changed.
+	 */
+	static final class PendingSession {
+
+		private final String id;
+		private final List<SessionWrite> writes = new ArrayList<>();
+		private final Set<String> removedIds = new LinkedHashSet<>();
+
+		private PendingSession(String id) {
+			this.id = id;
+		}
+
+		private void add(SessionWrite write, @Nullable String removedId) {
+
+			SessionWrite last = this.writes.isEmpty() ? null
+					: this.writes.get(this.writes.size() - 1);
+			if (write.getDocument() != null) {
+				// a whole document replaces all previous writes, and still creates the
+				// session if one of them did
+				if (this.writes.stream().anyMatch(previous -> !previous.isStored())) {
+					write.stored = false;
+				}
+				this.writes.clear();
+				this.writes.add(write);
+			}
+			else if (last != null && last.getDelta() != null
+					&& last.getDelta().size() + write.getDelta()
+							.size() <= CouchbaseSessionDelta.MAX_OPERATIONS) {
+				last.merge(write);
+			}
+			else {
+				this.writes.add(write);
+			}
+
+			if (removedId != null) {
+				this.removedIds.add(removedId);
+			}
+		}
+
+		String getId() {
+			return this.id;
+		}
+
+		List<SessionWrite> getWrites() {
+			return this.writes;
+		}
+
+		Set<String> getRemovedIds() {
+			return this.removedIds;
+		}
+	}
+}
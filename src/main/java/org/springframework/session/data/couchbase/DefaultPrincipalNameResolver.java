@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.springframework.lang.Nullable;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.Session;
+
+/**
+ * Resolves the principal from the Spring Security context stored in the session, reading
+ * the name of its {@link Authentication} directly. Contexts which aren't a
+ * {@link SecurityContext}, e.g. loaded by another class loader, are read through
+ * {@link AuthenticationParser}. Sessions without context fall back to the
+ * {@link FindByIndexNameSessionRepository#PRINCIPAL_NAME_INDEX_NAME} attribute.
+ */
+public class DefaultPrincipalNameResolver implements PrincipalNameResolver {
+
+	static final String SPRING_SECURITY_CONTEXT = "SPRING_SECURITY_CONTEXT";
+
+	@Override
+	@Nullable
+	public String resolvePrincipal(Session session) {
+
+		Object context = session.getAttribute(SPRING_SECURITY_CONTEXT);
+		String principal;
+		if (context instanceof SecurityContext) {
+			Authentication authentication = ((SecurityContext) context)
+					.getAuthentication();
+			principal = authentication != null ? authentication.getName() : null;
+		}
+		else {
+			principal = AuthenticationParser.extractName(context);
+		}
+
+		return principal != null ? principal
+				: session.getAttribute(
+						FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME);
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+/**
+ * What {@link CouchbaseSessionEventExecutor} does with a session event when its queue is
+ * full.
+ */
+public enum EventOverflowPolicy {
+
+	/**
+	 * The event is published on the thread which raised it, as without executor, which
+	 * slows that thread down until the listeners catch up.
+	 */
+	CALLER_RUNS,
+
+	/**
+	 * The event is dropped and counted, so that requests are never slowed down by
+	 * listeners.
+	 */
+	DISCARD
+}
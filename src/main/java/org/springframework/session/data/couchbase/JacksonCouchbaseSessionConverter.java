@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.springframework.core.serializer.support.SerializationFailedException;
+import org.springframework.lang.Nullable;
+import org.springframework.security.jackson2.SecurityJackson2Modules;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * {@code AbstractCouchbaseSessionConverter} implementation serializing every attribute
+ * with Jackson. The {@code ObjectMapper} records the class of every value, so attributes
+ * are read back with their original types. Any {@link JsonFactory} can be used, for
+ * example a {@code SmileFactory} for the binary Smile format.
+ * <p>
+ * Classes read from the stored documents are checked against the allowlist of the
+ * Spring Security Jackson modules. Other attribute types must be annotated with Jackson
+ * annotations or have a mixin registered on the mapper, e.g. one created by
+ * {@link #createObjectMapper(JsonFactory, ClassLoader)} and passed to
+ * {@link #JacksonCouchbaseSessionConverter(ObjectMapper, String, String, Integer, boolean)}.
+ */
+public class JacksonCouchbaseSessionConverter extends JdkCouchbaseSessionConverter {
+
+	/**
+	 * Common JDK value types missing from the Spring Security allowlist, allowed through
+	 * an empty mixin.
+	 */
+	private static final List<Class<?>> VALUE_TYPES = Arrays.asList(Long.class,
+			Short.class, Byte.class, Float.class, BigInteger.class, BigDecimal.class,
+			UUID.class, Duration.class, LocalDate.class, LocalTime.class,
+			LocalDateTime.class, OffsetDateTime.class, ZonedDateTime.class);
+
+	public JacksonCouchbaseSessionConverter(String documentTypeName,
+			String documentValue, Integer maxExpirationTime,
+			boolean keepStringAsLiteral) {
+		this(createObjectMapper(new JsonFactory(), null), documentTypeName,
+				documentValue, maxExpirationTime, keepStringAsLiteral);
+	}
+
+	public JacksonCouchbaseSessionConverter(ObjectMapper mapper,
+			String documentTypeName, String documentValue, Integer maxExpirationTime,
+			boolean keepStringAsLiteral) {
+		this(mapper.writerFor(TypedValue.class), mapper.readerFor(TypedValue.class),
+				documentTypeName, documentValue, maxExpirationTime,
+				keepStringAsLiteral);
+	}
+
+	private JacksonCouchbaseSessionConverter(ObjectWriter writer, ObjectReader reader,
+			String documentTypeName, String documentValue, Integer maxExpirationTime,
+			boolean keepStringAsLiteral) {
+		super(source -> serialize(writer, source), source -> deserialize(reader, source),
+				documentTypeName, documentValue, maxExpirationTime,
+				keepStringAsLiteral);
+	}
+
+	/**
+	 * Creates an {@code ObjectMapper} suitable for session attributes: it handles
+	 * {@code java.time} types, common JDK value types and the Spring Security
+	 * authentication objects, and includes the type of every value, which is checked
+	 * against the Spring Security allowlist when read. Register mixins or modules on the
+	 * returned mapper for any other attribute type.
+	 *
+	 * @param factory the factory defining the data format, e.g. JSON or Smile
+	 * @param classLoader the class loader used to resolve types, or {@code null} for
+	 *     the default one
+	 * @return the object mapper
+	 */
+	public static ObjectMapper createObjectMapper(JsonFactory factory,
+			@Nullable ClassLoader classLoader) {
+
+		ObjectMapper mapper = new ObjectMapper(factory);
+		if (classLoader != null) {
+			mapper.setTypeFactory(
+					mapper.getTypeFactory().withClassLoader(classLoader));
+		}
+		mapper.registerModule(new JavaTimeModule());
+		// also enables default typing restricted to the allowlisted classes
+		mapper.registerModules(SecurityJackson2Modules.getModules(classLoader));
+		VALUE_TYPES.forEach(type -> mapper.addMixIn(type, ValueTypeMixin.class));
+		return mapper;
+	}
+
+	private static byte[] serialize(ObjectWriter writer, Object source) {
+		try {
+			return writer.writeValueAsBytes(new TypedValue(source));
+		}
+		catch (IOException ex) {
+			throw new SerializationFailedException(
+					"Failed to serialize object using Jackson", ex);
+		}
+	}
+
+	private static Object deserialize(ObjectReader reader, byte[] source) {
+		try {
+			return reader.<TypedValue>readValue(source).value;
+		}
+		catch (IOException ex) {
+			throw new SerializationFailedException(
+					"Failed to deserialize payload using Jackson", ex);
+		}
+	}
+
+	/**
+	 * Allows a type through the allowlist without changing how it is serialized.
+	 */
+	private abstract static class ValueTypeMixin {
+	}
+
+	/**
+	 * Wraps attributes so that their type is recorded even if it is a scalar like
+	 * {@code Long}, which the default typing skips at the root of a document.
+	 */
+	@JsonFormat(shape = JsonFormat.Shape.ARRAY)
+	private static final class TypedValue {
+
+		@JsonProperty
+		private Object value;
+
+		private TypedValue() {
+		}
+
+		private TypedValue(Object value) {
+			this.value = value;
+		}
+	}
+}
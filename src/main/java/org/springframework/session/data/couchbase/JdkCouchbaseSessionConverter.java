@@ -17,10 +17,12 @@
 package org.springframework.session.data.couchbase;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 
 import org.springframework.core.convert.converter.Converter;
@@ -30,25 +32,47 @@ import org.springframework.lang.Nullable;
 import org.springframework.session.Session;
 import org.springframework.util.Assert;
 
+import com.couchbase.client.java.document.ByteArrayDocument;
+import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.json.JsonObject;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 /**
  * {@code AbstractCouchbaseSessionConverter} implementation using standard Java
- * serialization.
+ * serialization. Every attribute is serialized on its own into a field of the
+ * {@code _attr} object, and deserialized only when it is first read. Binary documents
+ * are supported as well, see {@link SessionDocumentFormat#BINARY}. Large attributes can
+ * be compressed, see {@link #setCompression(CompressionCodec, int)}.
  *
  * @author Denis Rosa
  */
 public class JdkCouchbaseSessionConverter extends AbstractCouchbaseSessionConverter {
 
+	private static final byte BINARY_FORMAT_VERSION = 1;
+
+	/**
+	 * Version, creation, last accessed and expiration time, max inactive interval,
+	 * principal length and attribute count.
+	 */
+	private static final int BINARY_HEADER_SIZE = 1 + 4 * 8 + 2 + 4;
+	private static final int BINARY_EXPIRE_AT_OFFSET = 1 + 2 * 8;
+	private static final int BINARY_INTERVAL_OFFSET = BINARY_EXPIRE_AT_OFFSET + 8;
+
+	/**
+	 * Principal names and attribute names are prefixed with their UTF-8 length as an
+	 * unsigned short.
+	 */
+	private static final int BINARY_MAX_NAME_LENGTH = 0xFFFF;
+
 	private final Converter<Object, byte[]> serializer;
 	private final Converter<byte[], Object> deserializer;
+	private final Converter<byte[], Object> attributeDeserializer = this::deserialize;
+	private AttributeCompression compression = new AttributeCompression(
+			CompressionCodec.NONE, 0);
 	private String documentValue;
 	private String documentTypeName;
-	private Integer maxExpirationTime;
 	private boolean keepStringAsLiteral;
 	private ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule());
 
@@ -58,6 +82,11 @@ public class JdkCouchbaseSessionConverter extends AbstractCouchbaseSessionConver
 				documentValue, maxExpirationTime, keepStringAsLiteral);
 	}
 
+	/**
+	 * Creates the converter. The {@code maxExpirationTime} is not used anymore, every
+	 * document expires shortly after its own session, see
+	 * {@link #getDocumentExpiry(CouchbaseSession)}.
+	 */
 	public JdkCouchbaseSessionConverter(Converter<Object, byte[]> serializer,
 			Converter<byte[], Object> deserializer, String documentTypeName,
 			String documentValue, Integer maxExpirationTime,
@@ -72,10 +101,29 @@ public class JdkCouchbaseSessionConverter extends AbstractCouchbaseSessionConver
 		this.deserializer = deserializer;
 		this.documentTypeName = documentTypeName;
 		this.documentValue = documentValue;
-		this.maxExpirationTime = maxExpirationTime;
 		this.keepStringAsLiteral = keepStringAsLiteral;
 	}
 
+	/**
+	 * Compresses serialized attributes of at least the given size. Compressed attributes
+	 * are marked with a header, so they are read back whichever codec is configured.
+	 *
+	 * @param codec the codec, {@link CompressionCodec#NONE} to turn compression off
+	 * @param thresholdBytes the minimal size of a serialized attribute to compress it
+	 */
+	public void setCompression(CompressionCodec codec, int thresholdBytes) {
+		this.compression = new AttributeCompression(codec, thresholdBytes);
+	}
+
+	/**
+	 * @param codec the codec
+	 * @return the statistics of the attributes compressed or decompressed with the codec
+	 *     since compression was last configured
+	 */
+	public CompressionStatistics getCompressionStatistics(CompressionCodec codec) {
+		return this.compression.getStatistics(codec);
+	}
+
 	public static byte[] toPrimitive(Byte[] byteArray) {
 
 		byte[] result = new byte[byteArray.length];
@@ -87,30 +135,94 @@ public class JdkCouchbaseSessionConverter extends AbstractCouchbaseSessionConver
 
 	@Override
 	protected JsonDocument convert(CouchbaseSession session) {
-		JsonObject obj = null;
-		try {
-			obj = JsonObject.create().put(this.documentTypeName, this.documentValue)
-					.put(CREATION_TIME, session.getCreationTime().toEpochMilli())
-					.put(LAST_ACCESSED_TIME, session.getLastAccessedTime().toEpochMilli())
-					.put(MAX_INTERVAL, session.getMaxInactiveInterval().getSeconds())
-					.put(PRINCIPAL_FIELD_NAME, extractPrincipal(session))
-					.put(EXPIRE_AT_FIELD_NAME, session.getExpireAt().getTime())
-					.put(ATTRIBUTES,
-							serializeAttributes(session, this.keepStringAsLiteral));
+		JsonObject obj = JsonObject.create()
+				.put(this.documentTypeName, this.documentValue)
+				.put(CREATION_TIME, session.getCreationTimeMillis())
+				.put(LAST_ACCESSED_TIME, session.getLastAccessedTimeMillis())
+				.put(MAX_INTERVAL, session.getMaxInactiveInterval().getSeconds())
+				.put(PRINCIPAL_FIELD_NAME, extractPrincipal(session))
+				.put(EXPIRE_AT_FIELD_NAME, session.getExpireAtMillis())
+				.put(ATTRIBUTES, serializeAttributes(session));
 
-			if (this.keepStringAsLiteral) {
-				extractStringSessionAttributes(session, obj);
-			}
+		if (this.keepStringAsLiteral) {
+			extractStringSessionAttributes(session, obj);
 		}
-		catch (JsonProcessingException e) {
-			e.printStackTrace();
-			throw new IllegalStateException("Could not serialize the session", e);
+
+		for (String attrName : getIndexedAttributes()) {
+			String value = indexedValue(session.getAttribute(attrName));
+			if (value != null) {
+				obj.put(indexedField(attrName), value);
+			}
 		}
 
-		JsonDocument doc = JsonDocument.create(session.getId(), maxExpirationTime, obj);
+		JsonDocument doc = JsonDocument.create(session.getId(),
+				getDocumentExpiry(session), obj);
 		return doc;
 	}
 
+	/**
+	 * Writes the access metadata of the session, plus the interval, the principal and
+	 * the attributes if any of them changed. Every attribute is stored in its own field,
+	 * so only the changed ones are serialized and sent.
+	 */
+	@Override
+	@Nullable
+	protected CouchbaseSessionDelta convertDelta(CouchbaseSession session) {
+
+		if (this.keepStringAsLiteral && !isLiteralOnlyChange(session)) {
+			// a removed or retyped attribute may still have a literal field which we
+			// can't address without knowing the stored document
+			return null;
+		}
+
+		CouchbaseSessionDelta delta = new CouchbaseSessionDelta(session.getId(),
+				getDocumentExpiry(session))
+						.upsert(LAST_ACCESSED_TIME,
+								session.getLastAccessedTimeMillis())
+						.upsert(EXPIRE_AT_FIELD_NAME, session.getExpireAtMillis());
+
+		if (session.isAccessedOnly()) {
+			return delta;
+		}
+
+		if (session.isMaxInactiveIntervalChanged()) {
+			delta.upsert(MAX_INTERVAL, session.getMaxInactiveInterval().getSeconds());
+		}
+
+		if (isPrincipalChanged(session)) {
+			delta.upsert(PRINCIPAL_FIELD_NAME, extractPrincipal(session));
+		}
+
+		for (String attrName : session.getChangedAttributeNames()) {
+			byte[] serializedValue = session.getSerializedAttribute(attrName);
+			if (serializedValue != null) {
+				// unread attribute which is written again, e.g. with SaveMode.ALWAYS
+				delta.upsert(attributePath(attrName), encode(serializedValue));
+				continue;
+			}
+			Object value = session.getAttribute(attrName);
+			if (isLiteral(attrName, value)) {
+				delta.upsert(CouchbaseSessionDelta.escape(attrName), value);
+			}
+			else {
+				delta.upsert(attributePath(attrName), serializeAttribute(value));
+			}
+			if (getIndexedAttributes().contains(attrName)) {
+				delta.upsert(CouchbaseSessionDelta.escape(indexedField(attrName)),
+						indexedValue(value));
+			}
+		}
+
+		for (String attrName : session.getRemovedAttributeNames()) {
+			delta.remove(attributePath(attrName));
+			if (getIndexedAttributes().contains(attrName)) {
+				delta.remove(CouchbaseSessionDelta.escape(indexedField(attrName)));
+			}
+		}
+
+		return delta;
+	}
+
 	@Override
 	protected CouchbaseSession convert(JsonDocument sessionWrapper) {
 
@@ -132,16 +244,22 @@ public class JdkCouchbaseSessionConverter extends AbstractCouchbaseSessionConver
 				maxIntervalDuration.getSeconds());
 
 		session.setCreationTime(sessionWrapper.getLong(CREATION_TIME));
-		session.setLastAccessedTime(
-				Instant.ofEpochMilli(sessionWrapper.getLong(LAST_ACCESSED_TIME)));
-		session.setExpireAt(new Date(sessionWrapper.getLong(EXPIRE_AT_FIELD_NAME)));
+		session.setLastAccessedTime(sessionWrapper.getLong(LAST_ACCESSED_TIME));
+		session.setExpireAtMillis(sessionWrapper.getLong(EXPIRE_AT_FIELD_NAME));
+		session.setStoredPrincipal(sessionWrapper.getString(PRINCIPAL_FIELD_NAME));
 
-		try {
-			deserializeAttributes(sessionWrapper.getString(ATTRIBUTES), session);
+		Object attributes = sessionWrapper.get(ATTRIBUTES);
+		if (attributes instanceof JsonObject) {
+			populateSerializedAttributes((JsonObject) attributes, session);
 		}
-		catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e);
+		else if (attributes instanceof String) {
+			try {
+				deserializeAttributes((String) attributes, session);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				throw new IllegalStateException(e);
+			}
 		}
 
 		if (this.keepStringAsLiteral) {
@@ -151,35 +269,177 @@ public class JdkCouchbaseSessionConverter extends AbstractCouchbaseSessionConver
 		return session;
 	}
 
+	@Override
+	protected boolean supportsBinary() {
+		return true;
+	}
+
 	/**
-	 * If keepStringAsLiteral is true, string attributes won't be included in the
-	 * serialized atttributes map
-	 * @param session
-	 * @param keepStringAsLiteral
-	 * @return
-	 * @throws JsonProcessingException
+	 * Writes the session as a compact header holding the metadata fields, followed by
+	 * the name and the serialized bytes of every attribute. Attributes which were not
+	 * read since the session was loaded are written back in their stored form.
+	 *
+	 * @throws IllegalArgumentException if the principal name or an attribute name takes
+	 * more than 65535 bytes in UTF-8
 	 */
-	@Nullable
-	private String serializeAttributes(Session session, boolean keepStringAsLiteral)
-			throws JsonProcessingException {
+	@Override
+	protected ByteArrayDocument convertToBinary(CouchbaseSession session) {
+
+		List<String> attrNames = new ArrayList<>(session.getAttributeNames());
+		List<byte[]> names = new ArrayList<>(attrNames.size());
+		List<byte[]> values = new ArrayList<>(attrNames.size());
+		byte[] principal = toBytes(extractPrincipal(session));
+		Assert.isTrue(principal.length <= BINARY_MAX_NAME_LENGTH,
+				() -> "Principal name of session " + session.getId() + " exceeds "
+						+ BINARY_MAX_NAME_LENGTH + " bytes");
+		int size = BINARY_HEADER_SIZE + principal.length;
+
+		for (String attrName : attrNames) {
+			byte[] value = session.getSerializedAttribute(attrName);
+			if (value == null) {
+				Object attribute = session.getAttribute(attrName);
+				if (attribute == null) {
+					continue;
+				}
+				value = serialize(attribute);
+			}
+			byte[] name = toBytes(attrName);
+			Assert.isTrue(name.length <= BINARY_MAX_NAME_LENGTH,
+					() -> "Attribute name of session " + session.getId() + " exceeds "
+							+ BINARY_MAX_NAME_LENGTH + " bytes");
+			names.add(name);
+			values.add(value);
+			size += 2 + name.length + 4 + value.length;
+		}
 
-		Map<String, Object> attributes = new HashMap<>();
-		for (String attrName : session.getAttributeNames()) {
-			if (!(keepStringAsLiteral
-					&& session.getAttribute(attrName) instanceof String)) {
-				attributes.put(attrName, session.getAttribute(attrName));
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.put(BINARY_FORMAT_VERSION)
+				.putLong(session.getCreationTimeMillis())
+				.putLong(session.getLastAccessedTimeMillis())
+				.putLong(session.getExpireAtMillis())
+				.putLong(session.getMaxInactiveInterval().getSeconds())
+				.putShort((short) principal.length).put(principal)
+				.putInt(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			buffer.putShort((short) names.get(i).length).put(names.get(i))
+					.putInt(values.get(i).length).put(values.get(i));
+		}
+
+		return ByteArrayDocument.create(session.getId(), getDocumentExpiry(session),
+				buffer.array());
+	}
+
+	@Override
+	protected CouchbaseSession convertFromBinary(ByteArrayDocument sessionWrapper) {
+
+		ByteBuffer buffer = ByteBuffer.wrap(sessionWrapper.content());
+		byte version = buffer.get();
+		if (version != BINARY_FORMAT_VERSION) {
+			throw new IllegalStateException("Unsupported binary session format "
+					+ version + " in document " + sessionWrapper.id());
+		}
+
+		long creationTime = buffer.getLong();
+		long lastAccessedTime = buffer.getLong();
+		long expireAt = buffer.getLong();
+		CouchbaseSession session = new CouchbaseSession(sessionWrapper.id(),
+				buffer.getLong());
+		session.setCreationTime(creationTime);
+		session.setLastAccessedTime(lastAccessedTime);
+		session.setExpireAtMillis(expireAt);
+
+		byte[] principal = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(principal);
+		if (principal.length > 0) {
+			session.setStoredPrincipal(new String(principal, StandardCharsets.UTF_8));
+		}
+
+		int attributeCount = buffer.getInt();
+		for (int i = 0; i < attributeCount; i++) {
+			byte[] name = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(name);
+			byte[] value = new byte[buffer.getInt()];
+			buffer.get(value);
+			session.setSerializedAttribute(new String(name, StandardCharsets.UTF_8),
+					value, this.attributeDeserializer);
+		}
+
+		return session;
+	}
+
+	/**
+	 * Reads the expiration time and max inactive interval of binary documents straight
+	 * from their header.
+	 */
+	@Override
+	protected boolean isExpired(Document<?> document) {
+
+		if (!(document instanceof ByteArrayDocument)) {
+			return super.isExpired(document);
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(((ByteArrayDocument) document).content());
+		if (buffer.get(0) != BINARY_FORMAT_VERSION) {
+			return super.isExpired(document);
+		}
+		return isExpired(buffer.getLong(BINARY_INTERVAL_OFFSET),
+				buffer.getLong(BINARY_EXPIRE_AT_OFFSET), getClock().millis());
+	}
+
+	/**
+	 * Serializes every attribute on its own. Attributes which were not read since the
+	 * session was loaded are written back in their stored form. If keepStringAsLiteral
+	 * is true, string attributes won't be included in the serialized attributes.
+	 */
+	private JsonObject serializeAttributes(CouchbaseSession session) {
+
+		JsonObject attributes = JsonObject.create();
+		for (String attrName : new ArrayList<>(session.getAttributeNames())) {
+			byte[] serializedValue = session.getSerializedAttribute(attrName);
+			if (serializedValue != null) {
+				attributes.put(attrName, encode(serializedValue));
+			}
+			else {
+				Object value = session.getAttribute(attrName);
+				if (value != null && !isLiteral(attrName, value)) {
+					attributes.put(attrName, serializeAttribute(value));
+				}
 			}
 		}
-		return mapper.writeValueAsString(this.serializer.convert(attributes));
+		return attributes;
+	}
+
+	private String serializeAttribute(@Nullable Object value) {
+		return encode(serialize(value));
+	}
+
+	private byte[] serialize(@Nullable Object value) {
+		return this.compression.compress(this.serializer.convert(value));
+	}
+
+	private Object deserialize(byte[] value) {
+		return this.deserializer.convert(this.compression.decompress(value));
+	}
+
+	private void populateSerializedAttributes(JsonObject attributes,
+			CouchbaseSession session) {
 
+		for (String attrName : attributes.getNames()) {
+			session.setSerializedAttribute(attrName,
+					Base64.getDecoder().decode(attributes.getString(attrName)),
+					this.attributeDeserializer);
+		}
 	}
 
+	/**
+	 * Reads the attributes of documents written by previous versions, which stored all
+	 * of them as a single serialized map.
+	 */
 	@SuppressWarnings("unchecked")
 	private void deserializeAttributes(String sessionAttributes, Session session)
 			throws IOException {
 
-		Byte[] test2 = mapper.readValue(sessionAttributes, Byte[].class);
-		byte[] attributesBytes = toPrimitive(test2);
+		byte[] attributesBytes = mapper.readValue(sessionAttributes, byte[].class);
 
 		Map<String, Object> attributes = (Map<String, Object>) this.deserializer
 				.convert(attributesBytes);
@@ -191,18 +451,52 @@ public class JdkCouchbaseSessionConverter extends AbstractCouchbaseSessionConver
 		}
 	}
 
-	private JsonObject extractStringSessionAttributes(Session session,
+	private JsonObject extractStringSessionAttributes(CouchbaseSession session,
 			JsonObject jsonObject) {
-		for (String attrName : session.getAttributeNames()) {
-			if (!attrName.startsWith("_") && !attrName.equals(this.documentTypeName)
-					&& session.getAttribute(attrName) instanceof String) {
-				jsonObject.put(attrName, (String) session.getAttribute(attrName));
+		for (String attrName : new ArrayList<>(session.getAttributeNames())) {
+			if (session.getSerializedAttribute(attrName) != null) {
+				continue;
+			}
+			Object value = session.getAttribute(attrName);
+			if (isLiteral(attrName, value)) {
+				jsonObject.put(attrName, (String) value);
 			}
 		}
 
 		return jsonObject;
 	}
 
+	private static String attributePath(String attrName) {
+		return ATTRIBUTES + "." + CouchbaseSessionDelta.escape(attrName);
+	}
+
+	private static byte[] toBytes(@Nullable String value) {
+		return value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+	}
+
+	private static String encode(byte[] bytes) {
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+
+	private boolean isLiteral(String attrName, @Nullable Object value) {
+		return this.keepStringAsLiteral && value instanceof String
+				&& !attrName.startsWith("_") && !attrName.equals(this.documentTypeName);
+	}
+
+	private boolean isLiteralOnlyChange(CouchbaseSession session) {
+
+		if (!session.getRemovedAttributeNames().isEmpty()) {
+			return false;
+		}
+		for (String attrName : session.getChangedAttributeNames()) {
+			if (session.getSerializedAttribute(attrName) != null
+					|| !isLiteral(attrName, session.getAttribute(attrName))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private Session populateStringSessionAttributes(JsonObject jsonObject,
 			Session session) {
 		Map<String, Object> map = jsonObject.toMap();
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.springframework.lang.Nullable;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
+import com.esotericsoftware.kryo.util.Pool;
+
+/**
+ * {@code AbstractCouchbaseSessionConverter} implementation serializing every attribute
+ * with Kryo. Registered classes are written as a small integer instead of their name;
+ * every node must register the same classes in the same order.
+ * <p>
+ * Once classes are registered, registration is required: attributes of any other
+ * class can't be written, and stored documents can't make Kryo instantiate them. Without
+ * registered classes, any class is written by name, so only use this converter with a
+ * bucket no untrusted party can write to.
+ */
+public class KryoCouchbaseSessionConverter extends JdkCouchbaseSessionConverter {
+
+	private static final int INITIAL_BUFFER_SIZE = 256;
+
+	/**
+	 * Kryo can't rebuild the unmodifiable JDK collections, which Spring Security uses
+	 * for authorities, so they are written as their elements and read back by wrapping a
+	 * new collection holding them.
+	 */
+	private static final Map<Class<?>, Serializer<?>> UNMODIFIABLE_COLLECTION_SERIALIZERS = createUnmodifiableCollectionSerializers();
+
+	public KryoCouchbaseSessionConverter(String documentTypeName, String documentValue,
+			Integer maxExpirationTime, boolean keepStringAsLiteral) {
+		this(Collections.emptyList(), null, documentTypeName, documentValue,
+				maxExpirationTime, keepStringAsLiteral);
+	}
+
+	public KryoCouchbaseSessionConverter(List<Class<?>> registeredClasses,
+			@Nullable ClassLoader classLoader, String documentTypeName,
+			String documentValue, Integer maxExpirationTime,
+			boolean keepStringAsLiteral) {
+		this(new KryoPool(registeredClasses, classLoader), documentTypeName,
+				documentValue, maxExpirationTime, keepStringAsLiteral);
+	}
+
+	private KryoCouchbaseSessionConverter(KryoPool pool, String documentTypeName,
+			String documentValue, Integer maxExpirationTime,
+			boolean keepStringAsLiteral) {
+		super(pool::serialize, pool::deserialize, documentTypeName, documentValue,
+				maxExpirationTime, keepStringAsLiteral);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<Class<?>, Serializer<?>> createUnmodifiableCollectionSerializers() {
+
+		Map<Class<?>, Serializer<?>> serializers = new LinkedHashMap<>();
+		serializers.put(Collections.unmodifiableCollection(new ArrayList<>()).getClass(),
+				new UnmodifiableCollectionSerializer(comparator -> new ArrayList<>(),
+						Collections::unmodifiableCollection));
+		serializers.put(Collections.unmodifiableList(new ArrayList<>()).getClass(),
+				new UnmodifiableCollectionSerializer(comparator -> new ArrayList<>(),
+						list -> Collections.unmodifiableList((List<Object>) list)));
+		serializers.put(Collections.unmodifiableList(new LinkedList<>()).getClass(),
+				new UnmodifiableCollectionSerializer(comparator -> new LinkedList<>(),
+						list -> Collections.unmodifiableList((List<Object>) list)));
+		serializers.put(Collections.unmodifiableSet(new HashSet<>()).getClass(),
+				new UnmodifiableCollectionSerializer(comparator -> new LinkedHashSet<>(),
+						set -> Collections.unmodifiableSet((Set<Object>) set)));
+		serializers.put(Collections.unmodifiableSortedSet(new TreeSet<>()).getClass(),
+				new UnmodifiableCollectionSerializer(TreeSet::new, set -> Collections
+						.unmodifiableSortedSet((SortedSet<Object>) set)));
+		serializers.put(Collections.unmodifiableMap(new HashMap<>()).getClass(),
+				new UnmodifiableMapSerializer(comparator -> new LinkedHashMap<>(),
+						Collections::unmodifiableMap));
+		serializers.put(Collections.unmodifiableSortedMap(new TreeMap<>()).getClass(),
+				new UnmodifiableMapSerializer(TreeMap::new, map -> Collections
+						.unmodifiableSortedMap((SortedMap<Object, Object>) map)));
+		return serializers;
+	}
+
+	/**
+	 * Writes an unmodifiable collection as its comparator, if sorted, and its elements,
+	 * and reads it back as a new collection wrapped again, so that no class but those of
+	 * the elements has to be registered or is instantiated from the stored data.
+	 */
+	private static final class UnmodifiableCollectionSerializer
+			extends Serializer<Collection<Object>> {
+
+		private final Function<Comparator<Object>, Collection<Object>> factory;
+		private final Function<Collection<Object>, Collection<Object>> wrapper;
+
+		private UnmodifiableCollectionSerializer(
+				Function<Comparator<Object>, Collection<Object>> factory,
+				Function<Collection<Object>, Collection<Object>> wrapper) {
+			this.factory = factory;
+			this.wrapper = wrapper;
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Collection<Object> collection) {
+			kryo.writeClassAndObject(output, collection instanceof SortedSet
+					? ((SortedSet<Object>) collection).comparator()
+					: null);
+			output.writeVarInt(collection.size(), true);
+			for (Object element : collection) {
+				kryo.writeClassAndObject(output, element);
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Collection<Object> read(Kryo kryo, Input input,
+				Class<? extends Collection<Object>> type) {
+			Comparator<Object> comparator = (Comparator<Object>) kryo
+					.readClassAndObject(input);
+			Collection<Object> collection = this.factory.apply(comparator);
+			for (int i = input.readVarInt(true); i > 0; i--) {
+				collection.add(kryo.readClassAndObject(input));
+			}
+			return this.wrapper.apply(collection);
+		}
+	}
+
+	/**
+	 * Writes an unmodifiable map as its comparator, if sorted, and its entries, and reads
+	 * it back as a new map wrapped again.
+	 */
+	private static final class UnmodifiableMapSerializer
+			extends Serializer<Map<Object, Object>> {
+
+		private final Function<Comparator<Object>, Map<Object, Object>> factory;
+		private final Function<Map<Object, Object>, Map<Object, Object>> wrapper;
+
+		private UnmodifiableMapSerializer(
+				Function<Comparator<Object>, Map<Object, Object>> factory,
+				Function<Map<Object, Object>, Map<Object, Object>> wrapper) {
+			this.factory = factory;
+			this.wrapper = wrapper;
+		}
+
+		@Override
+		public void write(Kryo kryo, Output output, Map<Object, Object> map) {
+			kryo.writeClassAndObject(output, map instanceof SortedMap
+					? ((SortedMap<Object, Object>) map).comparator()
+					: null);
+			output.writeVarInt(map.size(), true);
+			for (Map.Entry<Object, Object> entry : map.entrySet()) {
+				kryo.writeClassAndObject(output, entry.getKey());
+				kryo.writeClassAndObject(output, entry.getValue());
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Map<Object, Object> read(Kryo kryo, Input input,
+				Class<? extends Map<Object, Object>> type) {
+			Comparator<Object> comparator = (Comparator<Object>) kryo
+					.readClassAndObject(input);
+			Map<Object, Object> map = this.factory.apply(comparator);
+			for (int i = input.readVarInt(true); i > 0; i--) {
+				map.put(kryo.readClassAndObject(input), kryo.readClassAndObject(input));
+			}
+			return this.wrapper.apply(map);
+		}
+	}
+
+	/**
+	 * {@code Kryo} instances aren't thread safe, so they are pooled and configured
+	 * identically.
+	 */
+	private static final class KryoPool extends Pool<Kryo> {
+
+		private final List<Class<?>> registeredClasses;
+		@Nullable
+		private final ClassLoader classLoader;
+
+		private KryoPool(List<Class<?>> registeredClasses,
+				@Nullable ClassLoader classLoader) {
+			super(true, true);
+			this.registeredClasses = registeredClasses;
+			this.classLoader = classLoader;
+		}
+
+		@Override
+		protected Kryo create() {
+			Kryo kryo = new Kryo();
+			kryo.setRegistrationRequired(!this.registeredClasses.isEmpty());
+			kryo.setReferences(true);
+			kryo.setInstantiatorStrategy(
+					new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+			if (this.classLoader != null) {
+				kryo.setClassLoader(this.classLoader);
+			}
+			UNMODIFIABLE_COLLECTION_SERIALIZERS.forEach(kryo::addDefaultSerializer);
+			this.registeredClasses.forEach(kryo::register);
+			if (kryo.isRegistrationRequired()) {
+				// after the user's classes, so that their ids don't depend on this list
+				UNMODIFIABLE_COLLECTION_SERIALIZERS.keySet().forEach(kryo::register);
+			}
+			return kryo;
+		}
+
+		private byte[] serialize(Object source) {
+			Kryo kryo = obtain();
+			try {
+				Output output = new Output(INITIAL_BUFFER_SIZE, -1);
+				kryo.writeClassAndObject(output, source);
+				return output.toBytes();
+			}
+			finally {
+				free(kryo);
+			}
+		}
+
+		private Object deserialize(byte[] source) {
+			Kryo kryo = obtain();
+			try {
+				return kryo.readClassAndObject(new Input(source));
+			}
+			finally {
+				free(kryo);
+			}
+		}
+	}
+}
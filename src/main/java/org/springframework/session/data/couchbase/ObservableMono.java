@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.function.Supplier;
+
+import reactor.core.publisher.Mono;
+import rx.Observable;
+import rx.Subscription;
+
+/**
+ * Adapts the RxJava {@code Observable}s returned by the Couchbase SDK to Reactor.
+ */
+final class ObservableMono {
+
+	private ObservableMono() {
+	}
+
+	/**
+	 * @param observable supplies the observable when the mono is subscribed, which
+	 *     defers the operation until then
+	 * @return a mono emitting the single item of the observable, or empty if there is
+	 *     none
+	 */
+	static <T> Mono<T> toMono(Supplier<Observable<T>> observable) {
+		return Mono.create(sink -> {
+			Subscription subscription = observable.get().singleOrDefault(null)
+					.subscribe(sink::success, sink::error);
+			sink.onDispose(subscription::unsubscribe);
+		});
+	}
+}
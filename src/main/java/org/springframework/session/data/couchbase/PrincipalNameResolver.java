@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.springframework.lang.Nullable;
+import org.springframework.session.Session;
+
+/**
+ * Resolves the name of the principal a session belongs to, which is stored with the
+ * session so that sessions can be found by principal.
+ * <p>
+ * The principal of a {@link CouchbaseSession} is resolved once and remembered until the
+ * {@code SPRING_SECURITY_CONTEXT} or
+ * {@link org.springframework.session.FindByIndexNameSessionRepository#PRINCIPAL_NAME_INDEX_NAME}
+ * attribute changes, so implementations should resolve it from these attributes only.
+ *
+ * @see AbstractCouchbaseSessionConverter#setPrincipalNameResolver(PrincipalNameResolver)
+ */
+@FunctionalInterface
+public interface PrincipalNameResolver {
+
+	/**
+	 * @param session the session
+	 * @return the principal name, {@code null} if the session has no principal
+	 */
+	@Nullable
+	String resolvePrincipal(Session session);
+}
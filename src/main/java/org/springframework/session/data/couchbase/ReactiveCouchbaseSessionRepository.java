@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.springframework.session.data.couchbase.CBSessionUtils.*;
+import static org.springframework.session.data.couchbase.ObservableMono.*;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.*;
+
+import java.time.Clock;
+import java.time.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.session.ReactiveSessionRepository;
+import org.springframework.session.SaveMode;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.ByteArrayDocument;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.MultiMutationException;
+import com.couchbase.client.java.subdoc.AsyncMutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+
+import lombok.Setter;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link ReactiveSessionRepository} storing sessions in Couchbase through the
+ * non-blocking {@link AsyncBucket}, for use with WebFlux. Sessions are stored in the same
+ * documents as with {@link CouchbaseOperationsSessionRepository}, and saved the same way:
+ * changes of stored sessions are written as sub-document mutations, and touches may be
+ * throttled with {@code lastAccessedWriteThresholdInSeconds}.
+ */
+public class ReactiveCouchbaseSessionRepository
+		implements ReactiveSessionRepository<CouchbaseSession>, InitializingBean {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ReactiveCouchbaseSessionRepository.class);
+
+	private final AsyncBucket bucket;
+
+	@Setter
+	private Integer maxInactiveIntervalInSeconds = DEFAULT_INACTIVE_INTERVAL;
+
+	/**
+	 * Sessions which only had their last accessed time changed are not written again
+	 * until the stored last accessed time is at least this old. {@code 0} writes every
+	 * access.
+	 */
+	@Setter
+	private int lastAccessedWriteThresholdInSeconds = DEFAULT_LAST_ACCESSED_WRITE_THRESHOLD;
+
+	@Setter
+	private SessionDocumentFormat documentFormat = SessionDocumentFormat.JSON;
+
+	/**
+	 * Which attributes are written when a session is saved.
+	 */
+	@Setter
+	private SaveMode saveMode = SaveMode.ON_SET_ATTRIBUTE;
+
+	@Setter
+	private AbstractCouchbaseSessionConverter couchbaseSessionConverter = new JdkCouchbaseSessionConverter(
+			DEFAULT_NAME_TYPE, DEFAULT_VALUE_TYPE, DEFAULT_INACTIVE_INTERVAL,
+			DEFAULT_KEEP_STRING_AS_LITERAL);
+
+	/**
+	 * Generates the ids of new sessions and of sessions whose id is changed.
+	 */
+	@Setter
+	private SessionIdGenerator sessionIdGenerator = CouchbaseSession.DEFAULT_ID_GENERATOR;
+
+	/**
+	 * Clock the expiry of the sessions handed out is checked against.
+	 */
+	@Setter
+	private Clock clock = Clock.systemUTC();
+
+	public ReactiveCouchbaseSessionRepository(AsyncBucket bucket) {
+		this.bucket = bucket;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		checkDocumentFormat(this.couchbaseSessionConverter, this.documentFormat);
+	}
+
+	@Override
+	public Mono<CouchbaseSession> createSession() {
+		return Mono.fromSupplier(() -> {
+			CouchbaseSession session = new CouchbaseSession(
+					this.sessionIdGenerator.generateId(), DEFAULT_INACTIVE_INTERVAL);
+			if (this.maxInactiveIntervalInSeconds != null) {
+				session.setMaxInactiveInterval(
+						Duration.ofSeconds(this.maxInactiveIntervalInSeconds));
+			}
+			session.setSaveMode(this.saveMode);
+			session.setIdGenerator(this.sessionIdGenerator);
+			session.setClock(this.clock);
+			return session;
+		});
+	}
+
+	@Override
+	public Mono<Void> save(CouchbaseSession session) {
+		return Mono.defer(() -> {
+
+			session.prepareSave();
+			if (session.isAccessedOnly() && session
+					.isRecentlyAccessed(this.lastAccessedWriteThresholdInSeconds)) {
+				return Mono.empty();
+			}
+
+			CouchbaseSessionDelta delta = session.isStored()
+					&& this.documentFormat == SessionDocumentFormat.JSON
+							? convertToDelta(this.couchbaseSessionConverter, session)
+							: null;
+
+			Mono<Boolean> savedDelta = delta != null
+					&& delta.size() <= CouchbaseSessionDelta.MAX_OPERATIONS
+							? saveDelta(delta, session)
+							: Mono.just(false);
+
+			return savedDelta.filter(saved -> !saved)
+					.flatMap(saved -> saveDocument(session))
+					.then(Mono.fromRunnable(session::markPersisted));
+		});
+	}
+
+	private Mono<Boolean> saveDelta(CouchbaseSessionDelta delta,
+			CouchbaseSession session) {
+
+		return toMono(() -> {
+			AsyncMutateInBuilder mutation = this.bucket.mutateIn(delta.getId())
+					.withExpiry(delta.getExpiry());
+			delta.getUpserts()
+					.forEach((path, value) -> mutation.upsert(path, value,
+							SubdocOptionsBuilder.builder().createPath(true)));
+			delta.getRemovals().forEach(mutation::remove);
+			return mutation.execute();
+		}).map(result -> {
+			session.setCas(result.cas());
+			return true;
+		}).onErrorResume(DocumentDoesNotExistException.class, ex -> {
+			// removed while in use, e.g. by a logout on another node
+			logger.debug("Session " + delta.getId()
+					+ " was removed while it was in use, not saving it");
+			return Mono.just(true);
+		}).onErrorResume(MultiMutationException.class, ex -> {
+			logger.debug("Partial update of session " + delta.getId()
+					+ " failed, writing the whole document", ex);
+			return Mono.just(false);
+		});
+	}
+
+	private Mono<Void> saveDocument(CouchbaseSession session) {
+
+		Document<?> document = this.documentFormat == SessionDocumentFormat.BINARY
+				? convertToBinaryDoc(this.couchbaseSessionConverter, session)
+				: convertToJsonDoc(this.couchbaseSessionConverter, session);
+
+		if (session.isStored()) {
+			// a document removed while the session was in use is not brought back
+			return toMono(() -> this.bucket.replace(document))
+					.doOnNext(result -> session.setCas(result.cas())).then()
+					.onErrorResume(DocumentDoesNotExistException.class, ex -> Mono.empty());
+		}
+
+		Mono<Void> upsert = toMono(() -> this.bucket.upsert(document))
+				.doOnNext(result -> session.setCas(result.cas())).then();
+
+		if (session.isNew() || session.getId().equals(session.getOriginalId())) {
+			return upsert;
+		}
+
+		String originalId = session.getOriginalId();
+		return upsert.then(remove(originalId));
+	}
+
+	@Override
+	public Mono<CouchbaseSession> findById(String id) {
+		return findSession(id)
+				.flatMap(document -> isExpired(this.couchbaseSessionConverter, document)
+						? removeExpired(document).then(Mono.<CouchbaseSession>empty())
+								.onErrorResume(CASMismatchException.class,
+										ex -> findById(id))
+						: Mono.justOrEmpty(convertDocumentToSession(
+								this.couchbaseSessionConverter, document)))
+				.doOnNext(session -> {
+					session.setSaveMode(this.saveMode);
+					session.setIdGenerator(this.sessionIdGenerator);
+					session.setClock(this.clock);
+				});
+	}
+
+	@Override
+	public Mono<Void> deleteById(String id) {
+		return remove(id);
+	}
+
+	private Mono<? extends Document<?>> findSession(String id) {
+
+		if (this.documentFormat == SessionDocumentFormat.BINARY) {
+			return ObservableMono.<ByteArrayDocument>toMono(
+					() -> this.bucket.get(id, ByteArrayDocument.class));
+		}
+		return ObservableMono.<JsonDocument>toMono(() -> this.bucket.get(id));
+	}
+
+	/**
+	 * Removes an expired session document, failing with a
+	 * {@link CASMismatchException} if it changed since it was read.
+	 */
+	private Mono<Void> removeExpired(Document<?> document) {
+		return toMono(() -> this.bucket.remove(document)).then().onErrorResume(
+				DocumentDoesNotExistException.class, ex -> Mono.empty());
+	}
+
+	private Mono<Void> remove(String id) {
+		return toMono(() -> this.bucket.remove(id)).then().onErrorResume(
+				DocumentDoesNotExistException.class, ex -> Mono.empty());
+	}
+}
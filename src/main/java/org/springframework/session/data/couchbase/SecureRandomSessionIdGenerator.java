@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Generates 128 bit random session ids, encoded as 22 characters of unpadded base64url
+ * instead of the 36 characters of a {@link java.util.UUID}, which shortens document keys
+ * and cookies.
+ * <p>
+ * {@code UUID.randomUUID()} draws from a single {@link SecureRandom} shared by the whole
+ * JVM. This generator instead spreads threads over a fixed set of independently seeded
+ * {@code SHA1PRNG} instances, so that threads creating sessions concurrently rarely wait
+ * for each other. The instances are only created when a thread first needs them, so
+ * creating the generator itself is cheap.
+ */
+public class SecureRandomSessionIdGenerator implements SessionIdGenerator {
+
+	private static final int ID_BYTES = 16;
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private final AtomicReferenceArray<SecureRandom> stripes;
+	private final int mask;
+
+	public SecureRandomSessionIdGenerator() {
+		int stripes = Integer
+				.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+		this.stripes = new AtomicReferenceArray<>(stripes);
+		this.mask = stripes - 1;
+	}
+
+	/**
+	 * Creates the random number generator of a stripe. {@code SHA1PRNG} instances seed
+	 * themselves from the system once, unlike the default {@code NativePRNG} whose
+	 * instances all read from the same locked source.
+	 */
+	private static SecureRandom createSecureRandom() {
+		try {
+			return SecureRandom.getInstance("SHA1PRNG");
+		}
+		catch (NoSuchAlgorithmException ex) {
+			return new SecureRandom();
+		}
+	}
+
+	@Override
+	public String generateId() {
+		byte[] bytes = new byte[ID_BYTES];
+		stripe((int) Thread.currentThread().getId() & this.mask).nextBytes(bytes);
+		return ENCODER.encodeToString(bytes);
+	}
+
+	/**
+	 * Returns the random number generator of a stripe, creating it on first use. A
+	 * generator created concurrently by another thread wins over this one.
+	 */
+	private SecureRandom stripe(int index) {
+		SecureRandom random = this.stripes.get(index);
+		if (random == null) {
+			random = createSecureRandom();
+			if (!this.stripes.compareAndSet(index, null, random)) {
+				random = this.stripes.get(index);
+			}
+		}
+		return random;
+	}
+}
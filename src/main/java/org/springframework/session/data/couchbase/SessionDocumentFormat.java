@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+/**
+ * Format of the documents sessions are stored in.
+ */
+public enum SessionDocumentFormat {
+
+	/**
+	 * Sessions are stored as JSON documents. Metadata fields can be queried through N1QL
+	 * and sessions are updated through sub-document mutations.
+	 */
+	JSON,
+
+	/**
+	 * Sessions are stored as binary documents made of a compact header followed by the
+	 * serialized attributes. Attribute bytes are handed to the SDK as they are, without
+	 * any JSON encoding, but every save rewrites the whole document and the documents
+	 * can't be queried through N1QL.
+	 */
+	BINARY
+
+}
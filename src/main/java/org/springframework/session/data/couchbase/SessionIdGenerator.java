@@ -0,0 +1,31 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+/**
+ * Generates the ids of new sessions, and the new ids of sessions whose id is changed.
+ * Ids are used as document keys, so they must be unique and at most 250 bytes long.
+ *
+ * @see SecureRandomSessionIdGenerator
+ */
+@FunctionalInterface
+public interface SessionIdGenerator {
+
+	/**
+	 * @return a new, unpredictable session id
+	 */
+	String generateId();
+}
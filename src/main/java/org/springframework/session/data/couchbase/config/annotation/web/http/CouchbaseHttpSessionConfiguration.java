@@ -17,6 +17,13 @@ package org.springframework.session.data.couchbase.config.annotation.web.http;
 
 import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.*;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpSessionListener;
+
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.BeanClassLoaderAware;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.EmbeddedValueResolverAware;
@@ -25,10 +32,25 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.ImportAware;
 import org.springframework.core.annotation.AnnotationAttributes;
 import org.springframework.core.type.AnnotationMetadata;
+import org.springframework.session.FlushMode;
+import org.springframework.session.SaveMode;
 import org.springframework.session.config.annotation.web.http.SpringHttpSessionConfiguration;
 import org.springframework.session.data.couchbase.AbstractCouchbaseSessionConverter;
+import org.springframework.session.data.couchbase.AttributeSerialization;
+import org.springframework.session.data.couchbase.CompressionCodec;
 import org.springframework.session.data.couchbase.CouchbaseOperationsSessionRepository;
+import org.springframework.session.data.couchbase.CouchbasePrincipalIndex;
+import org.springframework.session.data.couchbase.CouchbaseSessionCache;
+import org.springframework.session.data.couchbase.CouchbaseSessionEventExecutor;
+import org.springframework.session.data.couchbase.CouchbaseSessionExpirations;
+import org.springframework.session.data.couchbase.CouchbaseSessionWriteBehind;
+import org.springframework.session.data.couchbase.EventOverflowPolicy;
 import org.springframework.session.data.couchbase.JdkCouchbaseSessionConverter;
+import org.springframework.session.data.couchbase.PrincipalNameResolver;
+import org.springframework.session.data.couchbase.SecureRandomSessionIdGenerator;
+import org.springframework.session.data.couchbase.SessionDocumentFormat;
+import org.springframework.session.data.couchbase.SessionIdGenerator;
+import org.springframework.session.web.http.SessionEventHttpSessionListenerAdapter;
 import org.springframework.util.StringValueResolver;
 
 import com.couchbase.client.java.Bucket;
@@ -44,11 +66,36 @@ public class CouchbaseHttpSessionConfiguration extends SpringHttpSessionConfigur
 		implements BeanClassLoaderAware, EmbeddedValueResolverAware, ImportAware {
 
 	private AbstractCouchbaseSessionConverter couchbaseSessionConverter;
+	private PrincipalNameResolver principalNameResolver;
 	private Integer maxInactiveIntervalInSeconds;
 	private String typeName;
 	private String typeValue;
 	private boolean keepStringAsLiterals;
+	private int lastAccessedWriteThresholdInSeconds = DEFAULT_LAST_ACCESSED_WRITE_THRESHOLD;
+	private SessionDocumentFormat documentFormat = DEFAULT_DOCUMENT_FORMAT;
+	private AttributeSerialization attributeSerialization = DEFAULT_ATTRIBUTE_SERIALIZATION;
+	private List<Class<?>> registeredClasses = Collections.emptyList();
+	private CompressionCodec compressionCodec = DEFAULT_COMPRESSION_CODEC;
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private int nearCacheMaxEntries = DEFAULT_NEAR_CACHE_MAX_ENTRIES;
+	private long nearCacheMaxBytes = DEFAULT_NEAR_CACHE_MAX_BYTES;
+	private int writeBehindMaxPendingSessions = DEFAULT_WRITE_BEHIND_MAX_PENDING_SESSIONS;
+	private long writeBehindFlushIntervalMillis = DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL;
+	private FlushMode flushMode = FlushMode.ON_SAVE;
+	private SaveMode saveMode = SaveMode.ON_SET_ATTRIBUTE;
+	private boolean cleanupExpiredSessions = DEFAULT_CLEANUP_EXPIRED_SESSIONS;
+	private boolean principalIndex = DEFAULT_PRINCIPAL_INDEX;
+	private List<String> indexedAttributes = Collections.emptyList();
+	private int queryPageSize = DEFAULT_QUERY_PAGE_SIZE;
+	private int decodeParallelism = DEFAULT_DECODE_PARALLELISM;
+	private int bulkConcurrency = DEFAULT_BULK_CONCURRENCY;
+	private int eventThreads = DEFAULT_EVENT_THREADS;
+	private int eventQueueCapacity = DEFAULT_EVENT_QUEUE_CAPACITY;
+	private EventOverflowPolicy eventOverflowPolicy = DEFAULT_EVENT_OVERFLOW_POLICY;
+	private boolean skipUnobservedEvents = DEFAULT_SKIP_UNOBSERVED_EVENTS;
+	private boolean httpSessionListeners;
 	private StringValueResolver embeddedValueResolver;
+	private Class<? extends SessionIdGenerator> sessionIdGenerator = SecureRandomSessionIdGenerator.class;
 	private ClassLoader classLoader;
 
 	@Bean
@@ -60,16 +107,58 @@ public class CouchbaseHttpSessionConfiguration extends SpringHttpSessionConfigur
 		repository.setMaxInactiveIntervalInSeconds(this.maxInactiveIntervalInSeconds);
 		repository.setNameType(this.typeName);
 		repository.setValueType(this.typeValue);
+		repository.setLastAccessedWriteThresholdInSeconds(
+				this.lastAccessedWriteThresholdInSeconds);
+		repository.setDocumentFormat(this.documentFormat);
+		repository.setFlushMode(this.flushMode);
+		repository.setSaveMode(this.saveMode);
+		repository.setIndexedAttributes(this.indexedAttributes);
+		repository.setQueryPageSize(this.queryPageSize);
+		repository.setDecodeParallelism(this.decodeParallelism);
+		repository.setBulkConcurrency(this.bulkConcurrency);
+		repository.setSessionIdGenerator(
+				BeanUtils.instantiateClass(this.sessionIdGenerator));
+		repository.setSkipUnobservedEvents(this.skipUnobservedEvents);
+		if (!this.httpSessionListeners) {
+			repository.setInactiveListenerTypes(
+					Collections.singleton(SessionEventHttpSessionListenerAdapter.class));
+		}
+		if (this.nearCacheMaxEntries > 0) {
+			repository.setSessionCache(new CouchbaseSessionCache(
+					this.nearCacheMaxEntries, this.nearCacheMaxBytes));
+		}
+		if (this.writeBehindMaxPendingSessions > 0) {
+			repository.setWriteBehind(
+					new CouchbaseSessionWriteBehind(this.writeBehindMaxPendingSessions,
+							this.writeBehindFlushIntervalMillis));
+		}
+		if (this.eventThreads > 0) {
+			repository.setEventExecutor(new CouchbaseSessionEventExecutor(
+					this.eventThreads, this.eventQueueCapacity, this.eventOverflowPolicy));
+		}
+		if (this.cleanupExpiredSessions) {
+			repository.setExpirations(
+					new CouchbaseSessionExpirations(bucket, this.typeValue));
+		}
+		if (this.principalIndex) {
+			repository.setPrincipalIndex(
+					new CouchbasePrincipalIndex(bucket, this.typeValue));
+		}
 
-		if (this.couchbaseSessionConverter != null) {
-			repository.setCouchbaseSessionConverter(this.couchbaseSessionConverter);
+		AbstractCouchbaseSessionConverter couchbaseSessionConverter = this.couchbaseSessionConverter;
+		if (couchbaseSessionConverter == null) {
+			JdkCouchbaseSessionConverter jdkSessionConverter = this.attributeSerialization
+					.createConverter(this.typeName, this.typeValue,
+							this.maxInactiveIntervalInSeconds, this.keepStringAsLiterals,
+							this.registeredClasses, this.classLoader);
+			jdkSessionConverter.setCompression(this.compressionCodec,
+					this.compressionThreshold);
+			couchbaseSessionConverter = jdkSessionConverter;
 		}
-		else {
-			JdkCouchbaseSessionConverter couchbaseSessionConverter = new JdkCouchbaseSessionConverter(
-					this.typeName, this.typeValue, this.maxInactiveIntervalInSeconds,
-					this.keepStringAsLiterals);
-			repository.setCouchbaseSessionConverter(couchbaseSessionConverter);
+		if (this.principalNameResolver != null) {
+			couchbaseSessionConverter.setPrincipalNameResolver(this.principalNameResolver);
 		}
+		repository.setCouchbaseSessionConverter(couchbaseSessionConverter);
 
 		return repository;
 	}
@@ -86,6 +175,96 @@ public class CouchbaseHttpSessionConfiguration extends SpringHttpSessionConfigur
 		this.typeValue = typeValue;
 	}
 
+	public void setLastAccessedWriteThresholdInSeconds(
+			int lastAccessedWriteThresholdInSeconds) {
+		this.lastAccessedWriteThresholdInSeconds = lastAccessedWriteThresholdInSeconds;
+	}
+
+	public void setDocumentFormat(SessionDocumentFormat documentFormat) {
+		this.documentFormat = documentFormat;
+	}
+
+	public void setAttributeSerialization(
+			AttributeSerialization attributeSerialization) {
+		this.attributeSerialization = attributeSerialization;
+	}
+
+	public void setRegisteredClasses(List<Class<?>> registeredClasses) {
+		this.registeredClasses = registeredClasses;
+	}
+
+	public void setCompressionCodec(CompressionCodec compressionCodec) {
+		this.compressionCodec = compressionCodec;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public void setNearCacheMaxEntries(int nearCacheMaxEntries) {
+		this.nearCacheMaxEntries = nearCacheMaxEntries;
+	}
+
+	public void setNearCacheMaxBytes(long nearCacheMaxBytes) {
+		this.nearCacheMaxBytes = nearCacheMaxBytes;
+	}
+
+	public void setWriteBehindMaxPendingSessions(int writeBehindMaxPendingSessions) {
+		this.writeBehindMaxPendingSessions = writeBehindMaxPendingSessions;
+	}
+
+	public void setWriteBehindFlushIntervalMillis(long writeBehindFlushIntervalMillis) {
+		this.writeBehindFlushIntervalMillis = writeBehindFlushIntervalMillis;
+	}
+
+	public void setFlushMode(FlushMode flushMode) {
+		this.flushMode = flushMode;
+	}
+
+	public void setSaveMode(SaveMode saveMode) {
+		this.saveMode = saveMode;
+	}
+
+	public void setCleanupExpiredSessions(boolean cleanupExpiredSessions) {
+		this.cleanupExpiredSessions = cleanupExpiredSessions;
+	}
+
+	public void setPrincipalIndex(boolean principalIndex) {
+		this.principalIndex = principalIndex;
+	}
+
+	public void setIndexedAttributes(List<String> indexedAttributes) {
+		this.indexedAttributes = indexedAttributes;
+	}
+
+	public void setQueryPageSize(int queryPageSize) {
+		this.queryPageSize = queryPageSize;
+	}
+
+	public void setDecodeParallelism(int decodeParallelism) {
+		this.decodeParallelism = decodeParallelism;
+	}
+
+	public void setBulkConcurrency(int bulkConcurrency) {
+		this.bulkConcurrency = bulkConcurrency;
+	}
+
+	public void setEventThreads(int eventThreads) {
+		this.eventThreads = eventThreads;
+	}
+
+	public void setEventQueueCapacity(int eventQueueCapacity) {
+		this.eventQueueCapacity = eventQueueCapacity;
+	}
+
+	public void setEventOverflowPolicy(EventOverflowPolicy eventOverflowPolicy) {
+		this.eventOverflowPolicy = eventOverflowPolicy;
+	}
+
+	public void setSkipUnobservedEvents(boolean skipUnobservedEvents) {
+		this.skipUnobservedEvents = skipUnobservedEvents;
+	}
+
 	public void setImportMetadata(AnnotationMetadata importMetadata) {
 
 		AnnotationAttributes attributes = AnnotationAttributes.fromMap(importMetadata
@@ -97,6 +276,34 @@ public class CouchbaseHttpSessionConfiguration extends SpringHttpSessionConfigur
 			this.typeName = attributes.getString("typeName");
 			this.typeValue = attributes.getString("typeValue");
 			this.keepStringAsLiterals = attributes.getBoolean("keepStringAsLiteral");
+			this.lastAccessedWriteThresholdInSeconds = attributes
+					.getNumber("lastAccessedWriteThresholdInSeconds");
+			this.documentFormat = attributes.getEnum("documentFormat");
+			this.attributeSerialization = attributes.getEnum("attributeSerialization");
+			this.registeredClasses = Arrays
+					.asList(attributes.getClassArray("registeredClasses"));
+			this.compressionCodec = attributes.getEnum("compressionCodec");
+			this.compressionThreshold = attributes.getNumber("compressionThreshold");
+			this.nearCacheMaxEntries = attributes.getNumber("nearCacheMaxEntries");
+			this.nearCacheMaxBytes = attributes.getNumber("nearCacheMaxBytes");
+			this.writeBehindMaxPendingSessions = attributes
+					.getNumber("writeBehindMaxPendingSessions");
+			this.writeBehindFlushIntervalMillis = attributes
+					.getNumber("writeBehindFlushIntervalMillis");
+			this.flushMode = attributes.getEnum("flushMode");
+			this.saveMode = attributes.getEnum("saveMode");
+			this.cleanupExpiredSessions = attributes.getBoolean("cleanupExpiredSessions");
+			this.principalIndex = attributes.getBoolean("principalIndex");
+			this.indexedAttributes = Arrays
+					.asList(attributes.getStringArray("indexedAttributes"));
+			this.queryPageSize = attributes.getNumber("queryPageSize");
+			this.decodeParallelism = attributes.getNumber("decodeParallelism");
+			this.bulkConcurrency = attributes.getNumber("bulkConcurrency");
+			this.sessionIdGenerator = attributes.getClass("sessionIdGenerator");
+			this.eventThreads = attributes.getNumber("eventThreads");
+			this.eventQueueCapacity = attributes.getNumber("eventQueueCapacity");
+			this.eventOverflowPolicy = attributes.getEnum("eventOverflowPolicy");
+			this.skipUnobservedEvents = attributes.getBoolean("skipUnobservedEvents");
 		}
 
 		if (this.maxInactiveIntervalInSeconds == null) {
@@ -111,12 +318,29 @@ public class CouchbaseHttpSessionConfiguration extends SpringHttpSessionConfigur
 
 	}
 
+	@Override
+	@Autowired(required = false)
+	public void setHttpSessionListeners(List<HttpSessionListener> listeners) {
+		super.setHttpSessionListeners(listeners);
+		this.httpSessionListeners = !listeners.isEmpty();
+	}
+
 	@Autowired(required = false)
 	public void setCouchbaseSessionConverter(
 			AbstractCouchbaseSessionConverter cbSessionConverter) {
 		this.couchbaseSessionConverter = cbSessionConverter;
 	}
 
+	public void setSessionIdGenerator(
+			Class<? extends SessionIdGenerator> sessionIdGenerator) {
+		this.sessionIdGenerator = sessionIdGenerator;
+	}
+
+	@Autowired(required = false)
+	public void setPrincipalNameResolver(PrincipalNameResolver principalNameResolver) {
+		this.principalNameResolver = principalNameResolver;
+	}
+
 	@Override
 	public void setBeanClassLoader(ClassLoader classLoader) {
 		this.classLoader = classLoader;
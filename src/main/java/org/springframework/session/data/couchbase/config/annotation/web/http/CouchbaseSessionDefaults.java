@@ -16,6 +16,11 @@
 
 package org.springframework.session.data.couchbase.config.annotation.web.http;
 
+import org.springframework.session.data.couchbase.AttributeSerialization;
+import org.springframework.session.data.couchbase.CompressionCodec;
+import org.springframework.session.data.couchbase.EventOverflowPolicy;
+import org.springframework.session.data.couchbase.SessionDocumentFormat;
+
 /**
  * Default config values for Couchbase Spring Session
  *
@@ -27,4 +32,23 @@ public class CouchbaseSessionDefaults {
 	public static final String DEFAULT_VALUE_TYPE = "sessions";
 	public static final String DEFAULT_NAME_TYPE = "_type";
 	public static final boolean DEFAULT_KEEP_STRING_AS_LITERAL = false;
+	public static final int DEFAULT_LAST_ACCESSED_WRITE_THRESHOLD = 0;
+	public static final SessionDocumentFormat DEFAULT_DOCUMENT_FORMAT = SessionDocumentFormat.JSON;
+	public static final AttributeSerialization DEFAULT_ATTRIBUTE_SERIALIZATION = AttributeSerialization.JDK;
+	public static final CompressionCodec DEFAULT_COMPRESSION_CODEC = CompressionCodec.NONE;
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	public static final int DEFAULT_NEAR_CACHE_MAX_ENTRIES = 0;
+	public static final long DEFAULT_NEAR_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+	public static final int DEFAULT_WRITE_BEHIND_MAX_PENDING_SESSIONS = 0;
+	public static final long DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL = 100;
+	public static final int DEFAULT_MAX_SAVE_ATTEMPTS = 5;
+	public static final boolean DEFAULT_CLEANUP_EXPIRED_SESSIONS = false;
+	public static final boolean DEFAULT_PRINCIPAL_INDEX = false;
+	public static final int DEFAULT_QUERY_PAGE_SIZE = 100;
+	public static final int DEFAULT_DECODE_PARALLELISM = 1;
+	public static final int DEFAULT_BULK_CONCURRENCY = 64;
+	public static final int DEFAULT_EVENT_THREADS = 0;
+	public static final int DEFAULT_EVENT_QUEUE_CAPACITY = 1000;
+	public static final EventOverflowPolicy DEFAULT_EVENT_OVERFLOW_POLICY = EventOverflowPolicy.CALLER_RUNS;
+	public static final boolean DEFAULT_SKIP_UNOBSERVED_EVENTS = false;
 }
@@ -19,6 +19,15 @@ import java.lang.annotation.*;
 
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.session.FlushMode;
+import org.springframework.session.SaveMode;
+import org.springframework.session.data.couchbase.AttributeSerialization;
+import org.springframework.session.data.couchbase.CompressionCodec;
+import org.springframework.session.data.couchbase.EventOverflowPolicy;
+import org.springframework.session.data.couchbase.SecureRandomSessionIdGenerator;
+import org.springframework.session.data.couchbase.SessionDocumentFormat;
+import org.springframework.session.data.couchbase.SessionIdGenerator;
+import org.springframework.session.data.couchbase.UuidSessionIdGenerator;
 
 /**
  * Add this annotation to a {@code @Configuration} class to expose the
@@ -64,4 +73,206 @@ public @interface EnableCouchbaseHttpSession {
 	 * @return value of the keepStringAsLiteral
 	 */
 	boolean keepStringAsLiteral() default CouchbaseSessionDefaults.DEFAULT_KEEP_STRING_AS_LITERAL;
+
+	/**
+	 * When a request only accesses the session, its last accessed time is not written
+	 * back to Couchbase if the stored one is less than this many seconds old. Sessions
+	 * may then expire up to this many seconds early, so keep the value small compared to
+	 * {@link #maxInactiveIntervalInSeconds()}. {@code 0} writes every access.
+	 *
+	 * @return the minimum age of the stored last accessed time before it is rewritten
+	 */
+	int lastAccessedWriteThresholdInSeconds() default CouchbaseSessionDefaults.DEFAULT_LAST_ACCESSED_WRITE_THRESHOLD;
+
+	/**
+	 * The format of the documents sessions are stored in. Sessions stored as
+	 * {@link SessionDocumentFormat#BINARY} documents can't be queried, so they require
+	 * {@link #principalIndex()}.
+	 *
+	 * @return the session document format
+	 */
+	SessionDocumentFormat documentFormat() default SessionDocumentFormat.JSON;
+
+	/**
+	 * The mechanism used to serialize session attributes. Ignored if an
+	 * {@code AbstractCouchbaseSessionConverter} bean is defined.
+	 *
+	 * @return the attribute serialization
+	 */
+	AttributeSerialization attributeSerialization() default AttributeSerialization.JDK;
+
+	/**
+	 * Classes registered up front with serializers supporting it, currently
+	 * {@link AttributeSerialization#KRYO}. Every node must list the same classes in the
+	 * same order. Once classes are listed, attributes of any other class are rejected.
+	 *
+	 * @return the classes to register
+	 */
+	Class<?>[] registeredClasses() default {};
+
+	/**
+	 * Codec used to compress serialized attributes of at least
+	 * {@link #compressionThreshold()} bytes. Ignored if an
+	 * {@code AbstractCouchbaseSessionConverter} bean is defined.
+	 *
+	 * @return the compression codec
+	 */
+	CompressionCodec compressionCodec() default CompressionCodec.NONE;
+
+	/**
+	 * Minimal size in bytes of a serialized attribute to be compressed.
+	 *
+	 * @return the compression threshold
+	 */
+	int compressionThreshold() default CouchbaseSessionDefaults.DEFAULT_COMPRESSION_THRESHOLD;
+
+	/**
+	 * Maximal number of sessions kept in the near-cache of each node, {@code 0} disables
+	 * the cache. Cached sessions are used only after checking that the stored document
+	 * didn't change since they were read.
+	 *
+	 * @return the maximal number of cached sessions
+	 */
+	int nearCacheMaxEntries() default CouchbaseSessionDefaults.DEFAULT_NEAR_CACHE_MAX_ENTRIES;
+
+	/**
+	 * Approximate maximal memory taken by the near-cache, in bytes.
+	 *
+	 * @return the maximal size of the near-cache
+	 */
+	long nearCacheMaxBytes() default CouchbaseSessionDefaults.DEFAULT_NEAR_CACHE_MAX_BYTES;
+
+	/**
+	 * Maximal number of sessions queued for writing in the background, {@code 0} writes
+	 * sessions before the request completes. Saving a session only queues its changes,
+	 * which are written within {@link #writeBehindFlushIntervalMillis()}. Sessions saved
+	 * while the queue is full are written synchronously. Changes which are queued when a
+	 * node stops abruptly are lost.
+	 *
+	 * @return the maximal number of queued sessions
+	 */
+	int writeBehindMaxPendingSessions() default CouchbaseSessionDefaults.DEFAULT_WRITE_BEHIND_MAX_PENDING_SESSIONS;
+
+	/**
+	 * Interval between two writes of the queued sessions, in milliseconds.
+	 *
+	 * @return the flush interval
+	 */
+	long writeBehindFlushIntervalMillis() default CouchbaseSessionDefaults.DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL;
+
+	/**
+	 * When sessions are written to Couchbase. {@link FlushMode#IMMEDIATE} writes every
+	 * change as it is made, instead of when the request completes.
+	 *
+	 * @return the flush mode
+	 */
+	FlushMode flushMode() default FlushMode.ON_SAVE;
+
+	/**
+	 * Which attributes are written when a session is saved. The default only writes the
+	 * attributes set or removed, {@link SaveMode#ON_GET_ATTRIBUTE} also writes the
+	 * attributes read, so that changes to mutable values are saved, and
+	 * {@link SaveMode#ALWAYS} writes all attributes.
+	 *
+	 * @return the save mode
+	 */
+	SaveMode saveMode() default SaveMode.ON_SET_ATTRIBUTE;
+
+	/**
+	 * Whether sessions are indexed by the minute they expire in, so that expired
+	 * sessions are removed and their {@code SessionExpiredEvent} published every minute,
+	 * instead of only when they are requested. Every save which moves the expiration of
+	 * a session to another minute then costs an extra sub-document write, to one of the
+	 * few documents holding the sessions expiring during that minute.
+	 *
+	 * @return whether to clean up expired sessions every minute
+	 */
+	boolean cleanupExpiredSessions() default CouchbaseSessionDefaults.DEFAULT_CLEANUP_EXPIRED_SESSIONS;
+
+	/**
+	 * Whether the ids of the sessions of every principal are kept in a lookup document,
+	 * so that finding the sessions of a principal takes a key-value get instead of a
+	 * N1QL query. Only sessions saved while the index is enabled are found.
+	 *
+	 * @return whether to maintain the principal index
+	 */
+	boolean principalIndex() default CouchbaseSessionDefaults.DEFAULT_PRINCIPAL_INDEX;
+
+	/**
+	 * Names of the attributes sessions can be found by through
+	 * {@code findByIndexNameAndIndexValue}. Their value is also written as a string field
+	 * of the session document, which is indexed on startup. Requires JSON documents.
+	 *
+	 * @return the indexed attribute names
+	 */
+	String[] indexedAttributes() default {};
+
+	/**
+	 * Number of sessions read per query when finding sessions by index, so that large
+	 * results are read page by page instead of all at once.
+	 *
+	 * @return the query page size
+	 */
+	int queryPageSize() default CouchbaseSessionDefaults.DEFAULT_QUERY_PAGE_SIZE;
+
+	/**
+	 * Number of threads decoding the sessions of a page in parallel. {@code 1} decodes
+	 * them on the calling thread.
+	 *
+	 * @return the number of decoding threads
+	 */
+	int decodeParallelism() default CouchbaseSessionDefaults.DEFAULT_DECODE_PARALLELISM;
+
+	/**
+	 * Maximum number of requests in flight when finding or deleting many sessions at
+	 * once.
+	 *
+	 * @return the bulk concurrency
+	 */
+	int bulkConcurrency() default CouchbaseSessionDefaults.DEFAULT_BULK_CONCURRENCY;
+
+	/**
+	 * Generates the ids of new sessions and of sessions whose id is changed. The class
+	 * must have a public no-arg constructor, use {@link UuidSessionIdGenerator} to keep
+	 * the ids of previous versions.
+	 *
+	 * @return the session id generator class
+	 */
+	Class<? extends SessionIdGenerator> sessionIdGenerator() default SecureRandomSessionIdGenerator.class;
+
+	/**
+	 * Number of threads publishing session events, so that slow listeners don't delay
+	 * requests. {@code 0} publishes events on the thread which raised them. Listeners
+	 * then receive a copy of the session taken when the event was raised.
+	 *
+	 * @return the number of event threads
+	 */
+	int eventThreads() default CouchbaseSessionDefaults.DEFAULT_EVENT_THREADS;
+
+	/**
+	 * Maximal number of session events waiting for an event thread.
+	 *
+	 * @return the event queue capacity
+	 */
+	int eventQueueCapacity() default CouchbaseSessionDefaults.DEFAULT_EVENT_QUEUE_CAPACITY;
+
+	/**
+	 * What happens to session events raised while the event queue is full.
+	 * {@link EventOverflowPolicy#CALLER_RUNS} publishes them on the thread which raised
+	 * them, {@link EventOverflowPolicy#DISCARD} drops them.
+	 *
+	 * @return the event overflow policy
+	 */
+	EventOverflowPolicy eventOverflowPolicy() default EventOverflowPolicy.CALLER_RUNS;
+
+	/**
+	 * Whether session events nobody listens to are skipped, sparing the decoding of the
+	 * sessions they are about and letting deletions remove documents without reading
+	 * them. Listener beans of the application context and its parents are detected,
+	 * listeners added directly to the event multicaster are not, so only enable this if
+	 * there are none.
+	 *
+	 * @return whether to skip events without listeners
+	 */
+	boolean skipUnobservedEvents() default CouchbaseSessionDefaults.DEFAULT_SKIP_UNOBSERVED_EVENTS;
 }
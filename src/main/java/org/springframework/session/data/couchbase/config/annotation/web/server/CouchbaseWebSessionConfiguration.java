@@ -0,0 +1,189 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase.config.annotation.web.server;
+
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportAware;
+import org.springframework.core.annotation.AnnotationAttributes;
+import org.springframework.core.type.AnnotationMetadata;
+import org.springframework.session.SaveMode;
+import org.springframework.session.config.annotation.web.server.SpringWebSessionConfiguration;
+import org.springframework.session.data.couchbase.AbstractCouchbaseSessionConverter;
+import org.springframework.session.data.couchbase.AttributeSerialization;
+import org.springframework.session.data.couchbase.CompressionCodec;
+import org.springframework.session.data.couchbase.JdkCouchbaseSessionConverter;
+import org.springframework.session.data.couchbase.PrincipalNameResolver;
+import org.springframework.session.data.couchbase.ReactiveCouchbaseSessionRepository;
+import org.springframework.session.data.couchbase.SecureRandomSessionIdGenerator;
+import org.springframework.session.data.couchbase.SessionDocumentFormat;
+import org.springframework.session.data.couchbase.SessionIdGenerator;
+
+import com.couchbase.client.java.Bucket;
+
+/**
+ * Configuration class registering a {@code ReactiveCouchbaseSessionRepository} bean. To
+ * import this configuration use {@link EnableCouchbaseWebSession} annotation.
+ */
+@Configuration
+public class CouchbaseWebSessionConfiguration extends SpringWebSessionConfiguration
+		implements BeanClassLoaderAware, ImportAware {
+
+	private AbstractCouchbaseSessionConverter couchbaseSessionConverter;
+	private PrincipalNameResolver principalNameResolver;
+	private Integer maxInactiveIntervalInSeconds = DEFAULT_INACTIVE_INTERVAL;
+	private String typeName = DEFAULT_NAME_TYPE;
+	private String typeValue = DEFAULT_VALUE_TYPE;
+	private boolean keepStringAsLiterals;
+	private int lastAccessedWriteThresholdInSeconds = DEFAULT_LAST_ACCESSED_WRITE_THRESHOLD;
+	private SessionDocumentFormat documentFormat = DEFAULT_DOCUMENT_FORMAT;
+	private AttributeSerialization attributeSerialization = DEFAULT_ATTRIBUTE_SERIALIZATION;
+	private List<Class<?>> registeredClasses = Collections.emptyList();
+	private CompressionCodec compressionCodec = DEFAULT_COMPRESSION_CODEC;
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private SaveMode saveMode = SaveMode.ON_SET_ATTRIBUTE;
+	private Class<? extends SessionIdGenerator> sessionIdGenerator = SecureRandomSessionIdGenerator.class;
+	private ClassLoader classLoader;
+
+	@Bean
+	public ReactiveCouchbaseSessionRepository reactiveCouchbaseSessionRepository(
+			Bucket bucket) {
+
+		ReactiveCouchbaseSessionRepository repository = new ReactiveCouchbaseSessionRepository(
+				bucket.async());
+		repository.setMaxInactiveIntervalInSeconds(this.maxInactiveIntervalInSeconds);
+		repository.setLastAccessedWriteThresholdInSeconds(
+				this.lastAccessedWriteThresholdInSeconds);
+		repository.setDocumentFormat(this.documentFormat);
+		repository.setSaveMode(this.saveMode);
+		repository.setSessionIdGenerator(
+				BeanUtils.instantiateClass(this.sessionIdGenerator));
+
+		AbstractCouchbaseSessionConverter couchbaseSessionConverter = this.couchbaseSessionConverter;
+		if (couchbaseSessionConverter == null) {
+			JdkCouchbaseSessionConverter jdkSessionConverter = this.attributeSerialization
+					.createConverter(this.typeName, this.typeValue,
+							this.maxInactiveIntervalInSeconds, this.keepStringAsLiterals,
+							this.registeredClasses, this.classLoader);
+			jdkSessionConverter.setCompression(this.compressionCodec,
+					this.compressionThreshold);
+			couchbaseSessionConverter = jdkSessionConverter;
+		}
+		if (this.principalNameResolver != null) {
+			couchbaseSessionConverter.setPrincipalNameResolver(this.principalNameResolver);
+		}
+		repository.setCouchbaseSessionConverter(couchbaseSessionConverter);
+
+		return repository;
+	}
+
+	public void setMaxInactiveIntervalInSeconds(Integer maxInactiveIntervalInSeconds) {
+		this.maxInactiveIntervalInSeconds = maxInactiveIntervalInSeconds;
+	}
+
+	public void setTypeName(String typeName) {
+		this.typeName = typeName;
+	}
+
+	public void setTypeValue(String typeValue) {
+		this.typeValue = typeValue;
+	}
+
+	public void setLastAccessedWriteThresholdInSeconds(
+			int lastAccessedWriteThresholdInSeconds) {
+		this.lastAccessedWriteThresholdInSeconds = lastAccessedWriteThresholdInSeconds;
+	}
+
+	public void setDocumentFormat(SessionDocumentFormat documentFormat) {
+		this.documentFormat = documentFormat;
+	}
+
+	public void setAttributeSerialization(
+			AttributeSerialization attributeSerialization) {
+		this.attributeSerialization = attributeSerialization;
+	}
+
+	public void setRegisteredClasses(List<Class<?>> registeredClasses) {
+		this.registeredClasses = registeredClasses;
+	}
+
+	public void setCompressionCodec(CompressionCodec compressionCodec) {
+		this.compressionCodec = compressionCodec;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public void setSaveMode(SaveMode saveMode) {
+		this.saveMode = saveMode;
+	}
+
+	@Override
+	public void setImportMetadata(AnnotationMetadata importMetadata) {
+
+		AnnotationAttributes attributes = AnnotationAttributes.fromMap(importMetadata
+				.getAnnotationAttributes(EnableCouchbaseWebSession.class.getName()));
+
+		if (attributes != null) {
+			this.maxInactiveIntervalInSeconds = attributes
+					.getNumber("maxInactiveIntervalInSeconds");
+			this.typeName = attributes.getString("typeName");
+			this.typeValue = attributes.getString("typeValue");
+			this.keepStringAsLiterals = attributes.getBoolean("keepStringAsLiteral");
+			this.lastAccessedWriteThresholdInSeconds = attributes
+					.getNumber("lastAccessedWriteThresholdInSeconds");
+			this.documentFormat = attributes.getEnum("documentFormat");
+			this.attributeSerialization = attributes.getEnum("attributeSerialization");
+			this.registeredClasses = Arrays
+					.asList(attributes.getClassArray("registeredClasses"));
+			this.compressionCodec = attributes.getEnum("compressionCodec");
+			this.compressionThreshold = attributes.getNumber("compressionThreshold");
+			this.saveMode = attributes.getEnum("saveMode");
+			this.sessionIdGenerator = attributes.getClass("sessionIdGenerator");
+		}
+	}
+
+	@Autowired(required = false)
+	public void setCouchbaseSessionConverter(
+			AbstractCouchbaseSessionConverter cbSessionConverter) {
+		this.couchbaseSessionConverter = cbSessionConverter;
+	}
+
+	public void setSessionIdGenerator(
+			Class<? extends SessionIdGenerator> sessionIdGenerator) {
+		this.sessionIdGenerator = sessionIdGenerator;
+	}
+
+	@Autowired(required = false)
+	public void setPrincipalNameResolver(PrincipalNameResolver principalNameResolver) {
+		this.principalNameResolver = principalNameResolver;
+	}
+
+	@Override
+	public void setBeanClassLoader(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+	}
+}
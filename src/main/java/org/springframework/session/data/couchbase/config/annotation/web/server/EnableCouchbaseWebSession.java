@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase.config.annotation.web.server;
+
+import java.lang.annotation.*;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.session.SaveMode;
+import org.springframework.session.data.couchbase.AttributeSerialization;
+import org.springframework.session.data.couchbase.CompressionCodec;
+import org.springframework.session.data.couchbase.SecureRandomSessionIdGenerator;
+import org.springframework.session.data.couchbase.SessionDocumentFormat;
+import org.springframework.session.data.couchbase.SessionIdGenerator;
+import org.springframework.session.data.couchbase.UuidSessionIdGenerator;
+import org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults;
+
+/**
+ * Add this annotation to a {@code @Configuration} class to expose the WebSessionManager
+ * as a bean named "webSessionManager" and backed by a reactive Couchbase session
+ * repository. Sessions are stored in the same documents as with
+ * {@code @EnableCouchbaseHttpSession}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Documented
+@Import(CouchbaseWebSessionConfiguration.class)
+@Configuration
+public @interface EnableCouchbaseWebSession {
+
+	/**
+	 * The maximum time a session will be kept if it is inactive.
+	 *
+	 * @return default max inactive interval in seconds
+	 */
+	int maxInactiveIntervalInSeconds() default CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+
+	/**
+	 * The name of the type attribute to use.
+	 *
+	 * @return name of the type attribute
+	 */
+	String typeName() default CouchbaseSessionDefaults.DEFAULT_NAME_TYPE;
+
+	/**
+	 * The value of the type attribute to differentiate this document from others.
+	 *
+	 * @return value of the type attribute
+	 */
+	String typeValue() default CouchbaseSessionDefaults.DEFAULT_VALUE_TYPE;
+
+	/**
+	 * If the attribute in the session map is a String, it will be saved as a standard
+	 * document attribute in Couchbase.
+	 *
+	 * @return value of the keepStringAsLiteral
+	 */
+	boolean keepStringAsLiteral() default CouchbaseSessionDefaults.DEFAULT_KEEP_STRING_AS_LITERAL;
+
+	/**
+	 * When a request only accesses the session, its last accessed time is not written
+	 * back to Couchbase if the stored one is less than this many seconds old.
+	 * {@code 0} writes every access.
+	 *
+	 * @return the minimum age of the stored last accessed time before it is rewritten
+	 */
+	int lastAccessedWriteThresholdInSeconds() default CouchbaseSessionDefaults.DEFAULT_LAST_ACCESSED_WRITE_THRESHOLD;
+
+	/**
+	 * The format of the documents sessions are stored in.
+	 *
+	 * @return the session document format
+	 */
+	SessionDocumentFormat documentFormat() default SessionDocumentFormat.JSON;
+
+	/**
+	 * The mechanism used to serialize session attributes. Ignored if an
+	 * {@code AbstractCouchbaseSessionConverter} bean is defined.
+	 *
+	 * @return the attribute serialization
+	 */
+	AttributeSerialization attributeSerialization() default AttributeSerialization.JDK;
+
+	/**
+	 * Classes registered up front with {@link AttributeSerialization#KRYO}. Once classes
+	 * are listed, attributes of any other class are rejected.
+	 *
+	 * @return the classes to register
+	 */
+	Class<?>[] registeredClasses() default {};
+
+	/**
+	 * Codec used to compress serialized attributes of at least
+	 * {@link #compressionThreshold()} bytes.
+	 *
+	 * @return the compression codec
+	 */
+	CompressionCodec compressionCodec() default CompressionCodec.NONE;
+
+	/**
+	 * Minimal size in bytes of a serialized attribute to be compressed.
+	 *
+	 * @return the compression threshold
+	 */
+	int compressionThreshold() default CouchbaseSessionDefaults.DEFAULT_COMPRESSION_THRESHOLD;
+
+	/**
+	 * Which attributes are written when a session is saved.
+	 *
+	 * @return the save mode
+	 */
+	SaveMode saveMode() default SaveMode.ON_SET_ATTRIBUTE;
+
+	/**
+	 * Generates the ids of new sessions and of sessions whose id is changed. The class
+	 * must have a public no-arg constructor, use {@link UuidSessionIdGenerator} to keep
+	 * the ids of previous versions.
+	 *
+	 * @return the session id generator class
+	 */
+	Class<? extends SessionIdGenerator> sessionIdGenerator() default SecureRandomSessionIdGenerator.class;
+}
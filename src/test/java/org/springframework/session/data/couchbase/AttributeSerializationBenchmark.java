@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_NAME_TYPE;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_VALUE_TYPE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+
+import com.couchbase.client.java.document.JsonDocument;
+
+/**
+ * Compares the {@link AttributeSerialization}s on a typical session: a Spring Security
+ * context, a counter and a short list of strings. {@code write} converts the session to
+ * its document, {@code read} converts the document back and decodes every attribute.
+ * {@link #main(String[])} first prints the size of the document each serialization
+ * produces.
+ * <p>
+ * Not run by the build, run {@link #main(String[])} from the test classpath.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AttributeSerializationBenchmark {
+
+	private static final String[] ATTRIBUTE_NAMES = { "SPRING_SECURITY_CONTEXT",
+			"visits", "recentSearches" };
+
+	@Param({ "JDK", "JSON", "SMILE", "KRYO" })
+	private AttributeSerialization serialization;
+
+	private JdkCouchbaseSessionConverter converter;
+	private CouchbaseSession session;
+	private JsonDocument document;
+
+	@Setup
+	public void setUp() {
+		this.converter = createConverter(this.serialization);
+		this.session = createSession();
+		this.document = this.converter.convert(this.session);
+	}
+
+	@Benchmark
+	public JsonDocument write() {
+		return this.converter.convert(this.session);
+	}
+
+	@Benchmark
+	public void read(Blackhole blackhole) {
+		CouchbaseSession session = this.converter.convert(this.document);
+		for (String name : ATTRIBUTE_NAMES) {
+			blackhole.consume(session.getAttribute(name));
+		}
+	}
+
+	static JdkCouchbaseSessionConverter createConverter(
+			AttributeSerialization serialization) {
+		return serialization.createConverter(DEFAULT_NAME_TYPE, DEFAULT_VALUE_TYPE,
+				DEFAULT_INACTIVE_INTERVAL, false, Collections.emptyList(), null);
+	}
+
+	static CouchbaseSession createSession() {
+		User user = new User("user", "", AuthorityUtils.createAuthorityList("ROLE_USER",
+				"ROLE_ADMIN"));
+		SecurityContextImpl context = new SecurityContextImpl(
+				new UsernamePasswordAuthenticationToken(user, null,
+						user.getAuthorities()));
+		CouchbaseSession session = new CouchbaseSession("session-id",
+				DEFAULT_INACTIVE_INTERVAL);
+		session.setAttribute(ATTRIBUTE_NAMES[0], context);
+		session.setAttribute(ATTRIBUTE_NAMES[1], 42L);
+		session.setAttribute(ATTRIBUTE_NAMES[2],
+				new ArrayList<>(Arrays.asList("couchbase", "spring session", "kryo")));
+		return session;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		for (AttributeSerialization serialization : AttributeSerialization.values()) {
+			JsonDocument document = createConverter(serialization)
+					.convert(createSession());
+			System.out.println(serialization + " document: "
+					+ document.content().toString().length() + " characters");
+		}
+		new Runner(new OptionsBuilder()
+				.include(AttributeSerializationBenchmark.class.getSimpleName()).build())
+						.run();
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link CompactAttributeMap} with the {@link HashMap} it replaces, filling the
+ * attributes of a session as a converter does when decoding it and reading them as a
+ * request does. With the GC profiler {@link #main(String[])} adds, the
+ * {@code gc.alloc.rate.norm} of the {@code fill} benchmarks is the memory a decoded
+ * session spends on its attribute map. Attributes are read with equal but distinct names,
+ * as the names a request passes are rarely the instances decoded from the document.
+ * <p>
+ * Not run by the build, run {@link #main(String[])} from the test classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompactAttributeMapBenchmark {
+
+	@Param({ "2", "8", "16" })
+	private int attributes;
+
+	private String[] names;
+	private String[] readNames;
+	private final Object value = new Object();
+	private Map<String, Object> compact;
+	private Map<String, Object> hashMap;
+
+	@Setup
+	public void setUp() {
+		this.names = new String[this.attributes];
+		this.readNames = new String[this.attributes];
+		for (int i = 0; i < this.attributes; i++) {
+			this.names[i] = "attribute" + i;
+			this.readNames[i] = new String(this.names[i]);
+		}
+		this.compact = fill(new CompactAttributeMap());
+		this.hashMap = fill(new HashMap<>());
+	}
+
+	@Benchmark
+	public Map<String, Object> fillCompact() {
+		return fill(new CompactAttributeMap());
+	}
+
+	@Benchmark
+	public Map<String, Object> fillHashMap() {
+		return fill(new HashMap<>());
+	}
+
+	@Benchmark
+	public void readCompact(Blackhole blackhole) {
+		read(this.compact, blackhole);
+	}
+
+	@Benchmark
+	public void readHashMap(Blackhole blackhole) {
+		read(this.hashMap, blackhole);
+	}
+
+	private Map<String, Object> fill(Map<String, Object> map) {
+		for (String name : this.names) {
+			map.put(name, this.value);
+		}
+		return map;
+	}
+
+	private void read(Map<String, Object> map, Blackhole blackhole) {
+		for (String name : this.readNames) {
+			blackhole.consume(map.get(name));
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(CompactAttributeMapBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
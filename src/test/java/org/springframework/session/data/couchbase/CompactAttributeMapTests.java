@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link CompactAttributeMap}, both below and above
+ * {@link CompactAttributeMap#MAX_COMPACT_SIZE} attributes.
+ */
+public class CompactAttributeMapTests {
+
+	@Test
+	public void removesThroughIterator() {
+		assertRemovesThroughIterator(3);
+		assertRemovesThroughIterator(CompactAttributeMap.MAX_COMPACT_SIZE + 4);
+	}
+
+	@Test
+	public void iteratorFailsOnceAttributeAdded() {
+		assertIteratorFails(3, map -> map.put("added", "value"));
+		assertIteratorFails(CompactAttributeMap.MAX_COMPACT_SIZE + 4,
+				map -> map.put("added", "value"));
+	}
+
+	@Test
+	public void iteratorFailsOnceAttributeRemoved() {
+		assertIteratorFails(3, map -> map.remove("attribute0"));
+		assertIteratorFails(CompactAttributeMap.MAX_COMPACT_SIZE + 4,
+				map -> map.remove("attribute0"));
+	}
+
+	@Test
+	public void iteratorFailsOnceMapSwitchedToHashMap() {
+		assertIteratorFails(CompactAttributeMap.MAX_COMPACT_SIZE,
+				map -> map.put("added", "value"));
+	}
+
+	@Test
+	public void iteratorFailsOnceMapCleared() {
+		assertIteratorFails(3, Map::clear);
+		assertIteratorFails(CompactAttributeMap.MAX_COMPACT_SIZE + 4, Map::clear);
+	}
+
+	@Test
+	public void iteratorSurvivesReplacedValues() {
+		Map<String, Object> map = fill(3);
+
+		for (String name : map.keySet()) {
+			map.put(name, "replaced");
+		}
+
+		assertThat(map.values()).containsOnly("replaced");
+	}
+
+	@Test
+	public void attributeNamesCanBeIteratedWhileReadingAttributes() {
+		CouchbaseSession session = new CouchbaseSession("session-id",
+				DEFAULT_INACTIVE_INTERVAL);
+		session.setSerializedAttribute("gone", new byte[0], bytes -> null);
+		session.setSerializedAttribute("present", new byte[0], bytes -> "value");
+		List<Object> values = new ArrayList<>();
+
+		for (String name : session.getAttributeNames()) {
+			values.add(session.getAttribute(name));
+		}
+
+		assertThat(values).containsExactlyInAnyOrder(null, "value");
+		assertThat(session.<Object> getAttribute("gone")).isNull();
+	}
+
+	private static void assertRemovesThroughIterator(int attributes) {
+		Map<String, Object> map = fill(attributes);
+
+		Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (!iterator.next().getKey().equals("attribute1")) {
+				iterator.remove();
+			}
+		}
+
+		assertThat(map).containsOnlyKeys("attribute1");
+	}
+
+	private static void assertIteratorFails(int attributes,
+			Consumer<Map<String, Object>> modification) {
+		Map<String, Object> map = fill(attributes);
+		Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+		iterator.next();
+
+		modification.accept(map);
+
+		assertThatThrownBy(iterator::next)
+				.isInstanceOf(ConcurrentModificationException.class);
+	}
+
+	private static Map<String, Object> fill(int attributes) {
+		Map<String, Object> map = new CompactAttributeMap();
+		for (int i = 0; i < attributes; i++) {
+			map.put("attribute" + i, "value" + i);
+		}
+		return map;
+	}
+}
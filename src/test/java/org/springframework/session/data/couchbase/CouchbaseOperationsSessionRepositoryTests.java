@@ -0,0 +1,265 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_KEEP_STRING_AS_LITERAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_NAME_TYPE;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_VALUE_TYPE;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.session.FlushMode;
+import org.springframework.session.SaveMode;
+
+import com.couchbase.client.core.message.kv.subdoc.multi.Mutation;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+
+/**
+ * Tests of the {@link FlushMode} and {@link SaveMode} support of
+ * {@link CouchbaseOperationsSessionRepository}, against a mocked {@link Bucket}.
+ */
+public class CouchbaseOperationsSessionRepositoryTests {
+
+	private static final String ID = "session-id";
+
+	private Bucket bucket;
+	private MutateInBuilder mutation;
+	private JdkCouchbaseSessionConverter converter;
+	private CouchbaseOperationsSessionRepository repository;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		this.bucket = mock(Bucket.class);
+		this.mutation = mock(MutateInBuilder.class, RETURNS_SELF);
+		DocumentFragment<Mutation> fragment = mock(DocumentFragment.class);
+		given(fragment.cas()).willReturn(2L);
+		given(this.mutation.execute()).willReturn(fragment);
+		given(this.bucket.mutateIn(anyString())).willReturn(this.mutation);
+		given(this.bucket.upsert(any(Document.class)))
+				.willAnswer(invocation -> invocation.getArgument(0));
+
+		this.converter = new JdkCouchbaseSessionConverter(DEFAULT_NAME_TYPE,
+				DEFAULT_VALUE_TYPE, DEFAULT_INACTIVE_INTERVAL,
+				DEFAULT_KEEP_STRING_AS_LITERAL);
+		this.repository = new CouchbaseOperationsSessionRepository(this.bucket);
+		this.repository.setCouchbaseSessionConverter(this.converter);
+	}
+
+	@Test
+	public void onSetAttributeSavesSetAttributesOnly() {
+		storeSession();
+		this.repository.setSaveMode(SaveMode.ON_SET_ATTRIBUTE);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "changed");
+		session.getAttribute("b");
+		this.repository.save(session);
+
+		assertThat(upsertedPaths()).contains(attributePath("a"))
+				.doesNotContain(attributePath("b"), attributePath("c"));
+	}
+
+	@Test
+	public void onGetAttributeAlsoSavesReadAttributes() {
+		storeSession();
+		this.repository.setSaveMode(SaveMode.ON_GET_ATTRIBUTE);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "changed");
+		session.getAttribute("b");
+		this.repository.save(session);
+
+		assertThat(upsertedPaths()).contains(attributePath("a"), attributePath("b"))
+				.doesNotContain(attributePath("c"));
+	}
+
+	@Test
+	public void onGetAttributeSavesReadAttributesWithoutChanges() {
+		storeSession();
+		this.repository.setSaveMode(SaveMode.ON_GET_ATTRIBUTE);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.getAttribute("b");
+		this.repository.save(session);
+
+		assertThat(upsertedPaths()).contains(attributePath("b"))
+				.doesNotContain(attributePath("a"), attributePath("c"));
+	}
+
+	@Test
+	public void alwaysSavesAllAttributes() {
+		storeSession();
+		this.repository.setSaveMode(SaveMode.ALWAYS);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		this.repository.save(session);
+
+		assertThat(upsertedPaths()).contains(attributePath("a"), attributePath("b"),
+				attributePath("c"));
+	}
+
+	@Test
+	public void removedAttributeIsRemovedFromDocument() {
+		storeSession();
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.removeAttribute("a");
+		this.repository.save(session);
+
+		verify(this.mutation).remove(attributePath("a"));
+		assertThat(upsertedPaths()).doesNotContain(attributePath("a"));
+	}
+
+	@Test
+	public void onSaveDoesNotWriteBeforeSave() {
+		storeSession();
+		this.repository.setFlushMode(FlushMode.ON_SAVE);
+
+		CouchbaseSession created = this.repository.createSession();
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "changed");
+		session.removeAttribute("b");
+		session.setMaxInactiveInterval(Duration.ofMinutes(5));
+		created.setAttribute("a", "value");
+
+		verify(this.bucket, never()).mutateIn(anyString());
+		verify(this.bucket, never()).upsert(any(Document.class));
+
+		this.repository.save(session);
+
+		verify(this.bucket).mutateIn(ID);
+	}
+
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void immediateSavesNewSessionOnCreation() {
+		this.repository.setFlushMode(FlushMode.IMMEDIATE);
+
+		CouchbaseSession session = this.repository.createSession();
+
+		ArgumentCaptor<Document> document = ArgumentCaptor.forClass(Document.class);
+		verify(this.bucket).upsert(document.capture());
+		assertThat(document.getValue().id()).isEqualTo(session.getId());
+	}
+
+	@Test
+	public void immediateSavesOnSetAttribute() {
+		storeSession();
+		this.repository.setFlushMode(FlushMode.IMMEDIATE);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "changed");
+
+		verify(this.bucket).mutateIn(ID);
+		assertThat(upsertedPaths()).contains(attributePath("a"));
+	}
+
+	@Test
+	public void immediateSavesOnRemoveAttribute() {
+		storeSession();
+		this.repository.setFlushMode(FlushMode.IMMEDIATE);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.removeAttribute("a");
+
+		verify(this.bucket).mutateIn(ID);
+		verify(this.mutation).remove(attributePath("a"));
+	}
+
+	@Test
+	public void immediateSavesOnSetMaxInactiveInterval() {
+		storeSession();
+		this.repository.setFlushMode(FlushMode.IMMEDIATE);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setMaxInactiveInterval(Duration.ofMinutes(5));
+
+		verify(this.bucket).mutateIn(ID);
+		assertThat(upsertedPaths())
+				.contains(AbstractCouchbaseSessionConverter.MAX_INTERVAL);
+	}
+
+	@Test
+	public void immediateSavesEveryChange() {
+		storeSession();
+		this.repository.setFlushMode(FlushMode.IMMEDIATE);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "changed");
+		session.removeAttribute("b");
+		session.setMaxInactiveInterval(Duration.ofMinutes(5));
+
+		verify(this.bucket, times(3)).mutateIn(ID);
+	}
+
+	@Test
+	public void immediateDoesNotSaveRemovalOfMissingAttribute() {
+		storeSession();
+		this.repository.setFlushMode(FlushMode.IMMEDIATE);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.removeAttribute("missing");
+
+		verify(this.bucket, never()).mutateIn(anyString());
+	}
+
+	/**
+	 * Makes the bucket return a stored session holding the attributes {@code a},
+	 * {@code b} and {@code c}.
+	 */
+	private void storeSession() {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		session.setAttribute("a", "1");
+		session.setAttribute("b", "2");
+		session.setAttribute("c", "3");
+		JsonDocument document = this.converter.convert(session);
+		given(this.bucket.get(ID)).willReturn(JsonDocument.create(document.id(),
+				document.expiry(), document.content(), 1L));
+	}
+
+	private List<String> upsertedPaths() {
+		ArgumentCaptor<String> paths = ArgumentCaptor.forClass(String.class);
+		verify(this.mutation, atLeastOnce()).upsert(paths.capture(), any(),
+				any(SubdocOptionsBuilder.class));
+		return paths.getAllValues();
+	}
+
+	private static String attributePath(String attributeName) {
+		return AbstractCouchbaseSessionConverter.ATTRIBUTES + "."
+				+ CouchbaseSessionDelta.escape(attributeName);
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_KEEP_STRING_AS_LITERAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_NAME_TYPE;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_VALUE_TYPE;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.session.FindByIndexNameSessionRepository;
+
+import com.couchbase.client.core.message.kv.subdoc.multi.Mutation;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+
+/**
+ * Tests of {@link CouchbasePrincipalIndex} and of how
+ * {@link CouchbaseOperationsSessionRepository} keeps it up to date, against a mocked
+ * {@link Bucket}.
+ */
+public class CouchbasePrincipalIndexTests {
+
+	private static final String ID = "session-id";
+	private static final String KEY_PREFIX = "spring:session:index:principal:sessions:";
+	private static final long PERIOD_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+	private Bucket bucket;
+	private MutateInBuilder mutation;
+	private CouchbasePrincipalIndex index;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		this.bucket = mock(Bucket.class);
+		this.mutation = mock(MutateInBuilder.class, RETURNS_SELF);
+		DocumentFragment<Mutation> fragment = mock(DocumentFragment.class);
+		given(fragment.cas()).willReturn(2L);
+		given(this.mutation.execute()).willReturn(fragment);
+		given(this.bucket.mutateIn(anyString())).willReturn(this.mutation);
+		this.index = new CouchbasePrincipalIndex(this.bucket, "sessions");
+	}
+
+	@Test
+	public void addKeepsDocumentUntilEndOfPeriodFollowingExpiration() {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+
+		long now = System.currentTimeMillis();
+		this.index.add("user", session);
+
+		verify(this.bucket).mutateIn(KEY_PREFIX + "user");
+		verify(this.mutation).upsert(CouchbaseSessionDelta.escape(ID), true);
+		ArgumentCaptor<Integer> expiry = ArgumentCaptor.forClass(Integer.class);
+		verify(this.mutation).withExpiry(expiry.capture());
+		long expected = TimeUnit.MILLISECONDS.toSeconds(
+				(session.getExpireAtMillis() / PERIOD_MILLIS + 2) * PERIOD_MILLIS - now);
+		assertThat((long) expiry.getValue()).isBetween(expected - 2, expected + 2);
+	}
+
+	@Test
+	public void addKeepsDocumentOfSessionWhichNeverExpires() {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		session.setMaxInactiveInterval(Duration.ofSeconds(-1));
+
+		this.index.add("user", session);
+
+		verify(this.mutation).withExpiry(0);
+	}
+
+	@Test
+	public void longPrincipalNamesAreHashed() {
+		char[] name = new char[300];
+		Arrays.fill(name, 'a');
+
+		this.index.add(new String(name), new CouchbaseSession(ID,
+				DEFAULT_INACTIVE_INTERVAL));
+
+		verify(this.bucket).mutateIn(startsWith(KEY_PREFIX + "md5:"));
+	}
+
+	@Test
+	public void expiryIsExtendedOnlyWhenExpirationMovesToLaterPeriod() {
+		CouchbaseSession session = storedSession(nextPeriodStart());
+
+		session.setLastAccessedTime(
+				session.getLastAccessedTimeMillis() + TimeUnit.HOURS.toMillis(1));
+		assertThat(CouchbasePrincipalIndex.isExpiryExtended(session)).isFalse();
+
+		session.setLastAccessedTime(
+				session.getLastAccessedTimeMillis() + PERIOD_MILLIS);
+		assertThat(CouchbasePrincipalIndex.isExpiryExtended(session)).isTrue();
+	}
+
+	@Test
+	public void expiryIsExtendedWhenMaxInactiveIntervalChanges() {
+		CouchbaseSession session = storedSession(nextPeriodStart());
+
+		session.setMaxInactiveInterval(Duration.ofMinutes(5));
+
+		assertThat(CouchbasePrincipalIndex.isExpiryExtended(session)).isTrue();
+	}
+
+	@Test
+	public void removeIgnoresMissingDocument() {
+		given(this.mutation.execute()).willThrow(new DocumentDoesNotExistException());
+
+		this.index.remove("user", ID);
+
+		verify(this.mutation).remove(CouchbaseSessionDelta.escape(ID));
+	}
+
+	@Test
+	public void removeAllRemovesWholeDocumentWhenAllItsIdsAreGiven() {
+		JsonDocument document = principalDocument("a", "b");
+
+		this.index.removeAll("user", document, new HashSet<>(Arrays.asList("a", "b")));
+
+		verify(this.bucket).remove(document);
+		verify(this.bucket, never()).mutateIn(anyString());
+	}
+
+	@Test
+	public void removeAllRemovesIdsOneByOneWhenDocumentChanged() {
+		JsonDocument document = principalDocument("a");
+		given(this.bucket.remove(document)).willThrow(new CASMismatchException());
+
+		this.index.removeAll("user", document, Collections.singleton("a"));
+
+		verify(this.mutation).remove(CouchbaseSessionDelta.escape("a"));
+	}
+
+	@Test
+	public void repositoryExtendsIndexOnlyWhenExpirationMovesToLaterPeriod() {
+		JdkCouchbaseSessionConverter converter = new JdkCouchbaseSessionConverter(
+				DEFAULT_NAME_TYPE, DEFAULT_VALUE_TYPE, DEFAULT_INACTIVE_INTERVAL,
+				DEFAULT_KEEP_STRING_AS_LITERAL);
+		CouchbaseOperationsSessionRepository repository = new CouchbaseOperationsSessionRepository(
+				this.bucket);
+		repository.setCouchbaseSessionConverter(converter);
+		repository.setPrincipalIndex(this.index);
+		repository.setLastAccessedWriteThresholdInSeconds(0);
+		CouchbaseSession stored = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		stored.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME,
+				"user");
+		stored.setLastAccessedTime(nextPeriodStart());
+		JsonDocument document = converter.convert(stored);
+		given(this.bucket.get(ID)).willReturn(JsonDocument.create(ID, document.expiry(),
+				document.content(), 1L));
+
+		CouchbaseSession session = repository.findById(ID);
+		session.setLastAccessedTime(
+				session.getLastAccessedTimeMillis() + TimeUnit.HOURS.toMillis(1));
+		repository.save(session);
+		verify(this.bucket, never()).mutateIn(KEY_PREFIX + "user");
+
+		session.setLastAccessedTime(
+				session.getLastAccessedTimeMillis() + PERIOD_MILLIS);
+		repository.save(session);
+		verify(this.bucket).mutateIn(KEY_PREFIX + "user");
+	}
+
+	/**
+	 * @return the start of the next period, so that the tests don't depend on the
+	 *     position of the current time in its period
+	 */
+	private static long nextPeriodStart() {
+		return (System.currentTimeMillis() / PERIOD_MILLIS + 1) * PERIOD_MILLIS;
+	}
+
+	private static CouchbaseSession storedSession(long lastAccessedMillis) {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		session.setLastAccessedTime(lastAccessedMillis);
+		session.markPersisted();
+		return session;
+	}
+
+	private static JsonDocument principalDocument(String... ids) {
+		JsonObject content = JsonObject.create();
+		for (String id : ids) {
+			content.put(id, true);
+		}
+		return JsonDocument.create(KEY_PREFIX + "user", 0, content, 1L);
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link CouchbaseSessionCache}.
+ */
+public class CouchbaseSessionCacheTests {
+
+	private final CouchbaseSessionCache cache = new CouchbaseSessionCache(100,
+			1024 * 1024);
+
+	@Test
+	public void sessionWithUnchangedCasIsAHit() {
+		this.cache.put(session("a", 1));
+
+		assertThat(this.cache.getCas("a")).isEqualTo(1L);
+		CouchbaseSession cached = this.cache.get("a", 1);
+
+		assertThat(cached).isNotNull();
+		assertThat(cached.getId()).isEqualTo("a");
+		assertThat(this.cache.getHits()).isEqualTo(1);
+		assertThat(this.cache.getMisses()).isZero();
+	}
+
+	@Test
+	public void uncachedSessionIsASingleMiss() {
+		assertThat(this.cache.getCas("a")).isNull();
+
+		assertThat(this.cache.getMisses()).isEqualTo(1);
+	}
+
+	@Test
+	public void staleSessionIsASingleMissAndDropped() {
+		this.cache.put(session("a", 1));
+
+		assertThat(this.cache.getCas("a")).isEqualTo(1L);
+		assertThat(this.cache.get("a", 2)).isNull();
+
+		assertThat(this.cache.getMisses()).isEqualTo(1);
+		assertThat(this.cache.getHits()).isZero();
+		assertThat(this.cache.size()).isZero();
+		assertThat(this.cache.getBytes()).isZero();
+	}
+
+	@Test
+	public void missingDocumentIsASingleMissAndDropped() {
+		this.cache.put(session("a", 1));
+
+		assertThat(this.cache.getCas("a")).isEqualTo(1L);
+		this.cache.missing("a");
+
+		assertThat(this.cache.getMisses()).isEqualTo(1);
+		assertThat(this.cache.size()).isZero();
+	}
+
+	@Test
+	public void sessionWithDeserializedAttributeIsNotCached() {
+		CouchbaseSession session = session("a", 1);
+		session.setAttribute("visits", 42L);
+
+		this.cache.put(session);
+
+		assertThat(this.cache.size()).isZero();
+	}
+
+	@Test
+	public void touchMovesCachedSessionToTheNewCas() {
+		this.cache.put(session("a", 1));
+
+		this.cache.touch("a", 1, 2, 1000);
+
+		assertThat(this.cache.get("a", 2).getLastAccessedTimeMillis()).isEqualTo(1000);
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedSession() {
+		CouchbaseSessionCache cache = new CouchbaseSessionCache(2, 1024 * 1024, 1);
+		cache.put(session("a", 1));
+		cache.put(session("b", 1));
+
+		cache.get("a", 1);
+		cache.put(session("c", 1));
+
+		assertThat(cache.getEvictions()).isEqualTo(1);
+		assertThat(cache.getCas("a")).isEqualTo(1L);
+		assertThat(cache.getCas("b")).isNull();
+		assertThat(cache.getCas("c")).isEqualTo(1L);
+	}
+
+	@Test
+	public void stripesShareTheLimits() {
+		CouchbaseSessionCache cache = new CouchbaseSessionCache(8, 1024 * 1024, 4);
+
+		for (int i = 0; i < 100; i++) {
+			cache.put(session("s" + i, 1));
+		}
+
+		assertThat(cache.size()).isLessThanOrEqualTo(8);
+	}
+
+	@Test
+	public void concurrentLookupsCountOneHitOrMissEach() throws Exception {
+		int threads = 4;
+		int lookups = 20000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < lookups; i++) {
+						String id = "s" + ThreadLocalRandom.current().nextInt(200);
+						Long cas = this.cache.getCas(id);
+						if (cas == null) {
+							this.cache.put(session(id, 1));
+						}
+						else {
+							this.cache.get(id, cas);
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		assertThat(this.cache.getHits() + this.cache.getMisses())
+				.isEqualTo(threads * lookups);
+		assertThat(this.cache.size()).isLessThanOrEqualTo(100);
+		assertThat(this.cache.getBytes())
+				.isEqualTo(this.cache.size() * session("s0", 1).estimateSize());
+	}
+
+	private static CouchbaseSession session(String id, long cas) {
+		CouchbaseSession session = new CouchbaseSession(id, DEFAULT_INACTIVE_INTERVAL);
+		session.setCas(cas);
+		return session;
+	}
+}
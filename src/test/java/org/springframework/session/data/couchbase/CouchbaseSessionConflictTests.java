@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_KEEP_STRING_AS_LITERAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_NAME_TYPE;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_VALUE_TYPE;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.subdoc.multi.Mutation;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.MultiMutationException;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+
+/**
+ * Tests of how {@link CouchbaseOperationsSessionRepository} saves sessions whose
+ * document was changed or removed since they were read, against a mocked
+ * {@link Bucket}. Stored sessions are written as a whole when their partial update
+ * fails, which the tests trigger with a {@link MultiMutationException}.
+ */
+public class CouchbaseSessionConflictTests {
+
+	private static final String ID = "session-id";
+
+	private Bucket bucket;
+	private MutateInBuilder mutation;
+	private JdkCouchbaseSessionConverter converter;
+	private CouchbaseOperationsSessionRepository repository;
+
+	@Before
+	public void setUp() {
+		this.bucket = mock(Bucket.class);
+		this.mutation = mock(MutateInBuilder.class, RETURNS_SELF);
+		given(this.bucket.mutateIn(anyString())).willReturn(this.mutation);
+
+		this.converter = new JdkCouchbaseSessionConverter(DEFAULT_NAME_TYPE,
+				DEFAULT_VALUE_TYPE, DEFAULT_INACTIVE_INTERVAL,
+				DEFAULT_KEEP_STRING_AS_LITERAL);
+		this.repository = new CouchbaseOperationsSessionRepository(this.bucket);
+		this.repository.setCouchbaseSessionConverter(this.converter);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void partialUpdateOfRemovedDocumentDoesNotRecreateIt() {
+		given(this.bucket.get(ID)).willReturn(storedDocument(1, "a", "1"));
+		given(this.mutation.execute()).willThrow(new DocumentDoesNotExistException());
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "changed");
+		this.repository.save(session);
+
+		verify(this.bucket, never()).replace(any(Document.class));
+		verify(this.bucket, never()).upsert(any(Document.class));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void failedPartialUpdateReplacesDocumentReadBySession() {
+		given(this.bucket.get(ID)).willReturn(storedDocument(1, "a", "1"));
+		failPartialUpdates();
+		given(this.bucket.replace(any(Document.class)))
+				.willAnswer(invocation -> invocation.getArgument(0));
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "changed");
+		this.repository.save(session);
+
+		List<JsonDocument> replaced = replacedDocuments(1);
+		assertThat(replaced.get(0).cas()).isEqualTo(1);
+		assertThat(this.converter.convert(replaced.get(0)).<String> getAttribute("a"))
+				.isEqualTo("changed");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void replaceMergesChangesStoredMeanwhile() {
+		given(this.bucket.get(ID)).willReturn(
+				storedDocument(1, "a", "1", "b", "2", "c", "3"),
+				storedDocument(2, "a", "1", "b", "theirs", "d", "new"));
+		failPartialUpdates();
+		given(this.bucket.replace(any(Document.class)))
+				.willThrow(new CASMismatchException())
+				.willAnswer(invocation -> invocation.getArgument(0));
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "mine");
+		this.repository.save(session);
+
+		List<JsonDocument> replaced = replacedDocuments(2);
+		assertThat(replaced.get(1).cas()).isEqualTo(2);
+		CouchbaseSession saved = this.converter.convert(replaced.get(1));
+		assertThat(saved.getAttributeNames()).containsOnly("a", "b", "d");
+		assertThat(saved.<String> getAttribute("a")).isEqualTo("mine");
+		assertThat(saved.<String> getAttribute("b")).isEqualTo("theirs");
+		assertThat(saved.<String> getAttribute("d")).isEqualTo("new");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void replaceGivesUpAfterMaxSaveAttempts() {
+		given(this.bucket.get(ID)).willReturn(storedDocument(1, "a", "1"));
+		failPartialUpdates();
+		given(this.bucket.replace(any(Document.class)))
+				.willThrow(new CASMismatchException());
+		this.repository.setMaxSaveAttempts(2);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "mine");
+
+		assertThatThrownBy(() -> this.repository.save(session))
+				.isInstanceOf(OptimisticLockingFailureException.class);
+		verify(this.bucket, times(2)).replace(any(Document.class));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void sessionRemovedWhileMergingIsNotRecreated() {
+		given(this.bucket.get(ID)).willReturn(storedDocument(1, "a", "1"), null);
+		failPartialUpdates();
+		given(this.bucket.replace(any(Document.class)))
+				.willThrow(new CASMismatchException());
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "mine");
+		this.repository.save(session);
+
+		verify(this.bucket, times(1)).replace(any(Document.class));
+		verify(this.bucket, never()).upsert(any(Document.class));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void replaceOfRemovedDocumentDoesNotRecreateIt() {
+		given(this.bucket.get(ID)).willReturn(storedDocument(1, "a", "1"));
+		failPartialUpdates();
+		given(this.bucket.replace(any(Document.class)))
+				.willThrow(new DocumentDoesNotExistException());
+
+		CouchbaseSession session = this.repository.findById(ID);
+		session.setAttribute("a", "mine");
+		this.repository.save(session);
+
+		verify(this.bucket, never()).upsert(any(Document.class));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void touchOfChangedDocumentDropsCachedCopyAndIsRetried() {
+		CouchbaseSessionCache cache = new CouchbaseSessionCache(10, 1024 * 1024);
+		this.repository.setSessionCache(cache);
+		given(this.bucket.get(ID)).willReturn(storedDocument(1, "a", "1"));
+		DocumentFragment<Mutation> fragment = mock(DocumentFragment.class);
+		given(fragment.cas()).willReturn(3L);
+		given(this.mutation.execute()).willThrow(new CASMismatchException())
+				.willReturn(fragment);
+
+		CouchbaseSession session = this.repository.findById(ID);
+		assertThat(cache.size()).isEqualTo(1);
+		session.setLastAccessedTime(
+				session.getLastAccessedTimeMillis() + TimeUnit.HOURS.toMillis(1));
+		this.repository.save(session);
+
+		verify(this.mutation).withCas(1L);
+		verify(this.mutation, times(2)).execute();
+		assertThat(session.getCas()).isEqualTo(3);
+		assertThat(cache.size()).isZero();
+	}
+
+	private void failPartialUpdates() {
+		given(this.mutation.execute()).willThrow(new MultiMutationException(0,
+				ResponseStatus.FAILURE, Collections.emptyList(), null));
+	}
+
+	/**
+	 * @param attributes names and values of the string attributes of the session
+	 */
+	private JsonDocument storedDocument(long cas, String... attributes) {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		for (int i = 0; i < attributes.length; i += 2) {
+			session.setAttribute(attributes[i], attributes[i + 1]);
+		}
+		JsonDocument document = this.converter.convert(session);
+		return JsonDocument.create(document.id(), document.expiry(), document.content(),
+				cas);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<JsonDocument> replacedDocuments(int count) {
+		ArgumentCaptor<JsonDocument> documents = ArgumentCaptor
+				.forClass((Class) JsonDocument.class);
+		verify(this.bucket, times(count)).replace(documents.capture());
+		return documents.getAllValues();
+	}
+}
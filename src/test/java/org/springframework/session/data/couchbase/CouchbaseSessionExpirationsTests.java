@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.subdoc.AsyncMutateInBuilder;
+
+import rx.Observable;
+
+/**
+ * Tests of {@link CouchbaseSessionExpirations}, against a mocked {@link Bucket} holding
+ * the slot documents in a map and the last claim inserted.
+ */
+public class CouchbaseSessionExpirationsTests {
+
+	private static final String KEY_PREFIX = "spring:session:expirations:sessions:";
+	private static final long SLOT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private final Map<String, JsonDocument> slots = new HashMap<>();
+	private final AtomicReference<JsonDocument> claim = new AtomicReference<>();
+	private final List<List<String>> expiredBatches = new ArrayList<>();
+
+	private Bucket bucket;
+	private AsyncMutateInBuilder mutation;
+	private CouchbaseSessionExpirations expirations;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		this.bucket = mock(Bucket.class);
+		AsyncBucket asyncBucket = mock(AsyncBucket.class);
+		given(this.bucket.async()).willReturn(asyncBucket);
+		given(asyncBucket.get(anyString())).willAnswer(invocation -> {
+			JsonDocument slot = this.slots.get(invocation.<String> getArgument(0));
+			return slot != null ? Observable.just(slot) : Observable.empty();
+		});
+		this.mutation = mock(AsyncMutateInBuilder.class, RETURNS_SELF);
+		given(this.mutation.execute()).willReturn(Observable.empty());
+		given(asyncBucket.mutateIn(anyString())).willReturn(this.mutation);
+
+		given(this.bucket.insert(any(JsonDocument.class))).willAnswer(invocation -> {
+			this.claim.set(invocation.getArgument(0));
+			return invocation.getArgument(0);
+		});
+		given(this.bucket.getAndTouch(anyString(), anyInt()))
+				.willAnswer(invocation -> this.claim.get());
+		given(this.bucket.get(anyString())).willAnswer(invocation -> this.claim.get());
+		given(this.bucket.remove(any(JsonDocument.class)))
+				.willAnswer(invocation -> invocation.getArgument(0));
+
+		this.expirations = new CouchbaseSessionExpirations(this.bucket, "sessions");
+		this.expirations.start(ids -> {
+			this.expiredBatches.add(new ArrayList<>(ids));
+			return ids.size();
+		});
+	}
+
+	@After
+	public void tearDown() {
+		this.expirations.stop();
+	}
+
+	@Test
+	public void claimedSlotIsExpiredAndRemoved() {
+		long now = System.currentTimeMillis();
+		JsonDocument slot = storeSlot(now - now % SLOT_MILLIS, "a", "b");
+
+		int expired = this.expirations.process(now);
+
+		assertThat(expired).isEqualTo(2);
+		assertThat(this.expiredBatches).hasSize(1);
+		assertThat(this.expiredBatches.get(0)).containsExactlyInAnyOrder("a", "b");
+		verify(this.bucket).remove(slot);
+		verify(this.bucket).remove(this.claim.get());
+		assertThat(this.expirations.getProcessedSlots()).isEqualTo(1);
+	}
+
+	@Test
+	public void slotClaimedByAnotherNodeIsSkipped() {
+		long now = System.currentTimeMillis();
+		JsonDocument slot = storeSlot(now - now % SLOT_MILLIS, "a");
+		given(this.bucket.insert(any(JsonDocument.class)))
+				.willThrow(new DocumentAlreadyExistsException());
+
+		assertThat(this.expirations.process(now)).isZero();
+
+		assertThat(this.expiredBatches).isEmpty();
+		verify(this.bucket, never()).remove(slot);
+	}
+
+	@Test
+	public void slotIsLeftToAnotherNodeOnceClaimIsLost() {
+		long now = System.currentTimeMillis();
+		JsonDocument slot = storeSlot(now - now % SLOT_MILLIS, "a");
+		JsonDocument otherClaim = JsonDocument.create("claim",
+				JsonObject.create().put("owner", "another node"));
+		given(this.bucket.getAndTouch(anyString(), anyInt())).willReturn(otherClaim);
+		given(this.bucket.get(anyString())).willReturn(otherClaim);
+
+		this.expirations.process(now);
+
+		assertThat(this.expiredBatches).hasSize(1);
+		verify(this.bucket, never()).remove(slot);
+		verify(this.bucket, never()).remove(otherClaim);
+	}
+
+	@Test
+	public void slotsOlderThanCatchUpAreLeftToDocumentExpiry() {
+		long now = System.currentTimeMillis();
+		storeSlot(now - now % SLOT_MILLIS - 10 * SLOT_MILLIS, "a");
+
+		assertThat(this.expirations.process(now)).isZero();
+
+		assertThat(this.expiredBatches).isEmpty();
+	}
+
+	@Test
+	public void newSessionIsIndexedInSlotOfItsExpiration() {
+		CouchbaseSession session = new CouchbaseSession("a", DEFAULT_INACTIVE_INTERVAL);
+
+		this.expirations.index(session);
+
+		verify(this.bucket.async()).mutateIn(shardKey(slotOf(session), session));
+		verify(this.mutation).upsert(CouchbaseSessionDelta.escape("a"), true);
+	}
+
+	@Test
+	public void storedSessionIsIndexedAgainOnlyWhenItsSlotChanges() {
+		CouchbaseSession session = new CouchbaseSession("a", DEFAULT_INACTIVE_INTERVAL);
+		session.markPersisted();
+
+		this.expirations.index(session);
+		verify(this.bucket.async(), never()).mutateIn(anyString());
+
+		session.setLastAccessedTime(
+				session.getLastAccessedTimeMillis() + 2 * SLOT_MILLIS);
+		this.expirations.index(session);
+		verify(this.bucket.async()).mutateIn(shardKey(slotOf(session), session));
+	}
+
+	@Test
+	public void sessionWhichNeverExpiresIsNotIndexed() {
+		CouchbaseSession session = new CouchbaseSession("a", DEFAULT_INACTIVE_INTERVAL);
+		session.setMaxInactiveInterval(Duration.ofSeconds(-1));
+
+		this.expirations.index(session);
+
+		verify(this.bucket.async(), never()).mutateIn(anyString());
+	}
+
+	/**
+	 * Stores the ids in the first shard of the slot.
+	 */
+	private JsonDocument storeSlot(long slot, String... ids) {
+		JsonObject content = JsonObject.create();
+		for (String id : ids) {
+			content.put(id, true);
+		}
+		JsonDocument document = JsonDocument.create(KEY_PREFIX + slot + ":0", 0, content,
+				1L);
+		this.slots.put(document.id(), document);
+		return document;
+	}
+
+	private static long slotOf(CouchbaseSession session) {
+		long expireAt = session.getExpireAtMillis();
+		long remainder = expireAt % SLOT_MILLIS;
+		return remainder == 0 ? expireAt : expireAt - remainder + SLOT_MILLIS;
+	}
+
+	private static String shardKey(long slot, CouchbaseSession session) {
+		return KEY_PREFIX + slot + ":" + Math.floorMod(session.getId().hashCode(), 8);
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.session.data.couchbase.CouchbaseSessionWriteBehind.PendingSession;
+import org.springframework.session.data.couchbase.CouchbaseSessionWriteBehind.SessionWrite;
+
+import com.couchbase.client.java.document.JsonDocument;
+
+/**
+ * Tests of {@link CouchbaseSessionWriteBehind}, whose background flushes are spaced far
+ * enough apart that only the flushes the tests trigger run.
+ */
+public class CouchbaseSessionWriteBehindTests {
+
+	private static final String ID = "session-id";
+
+	private final CouchbaseSessionWriteBehind writeBehind = new CouchbaseSessionWriteBehind(
+			100, TimeUnit.HOURS.toMillis(1));
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+	private volatile Runnable onWrite = () -> {
+	};
+
+	private volatile Consumer<List<PendingSession>> onBatch = batch -> {
+	};
+
+	private final AtomicInteger writtenSessions = new AtomicInteger();
+
+	@Before
+	public void setUp() {
+		this.writeBehind.start(this::write);
+	}
+
+	@After
+	public void tearDown() {
+		this.executor.shutdownNow();
+		this.writeBehind.stop();
+	}
+
+	@Test
+	public void flushWritesQueuedSessions() {
+		this.writeBehind.submit(SessionWrite.document(JsonDocument.create(ID), false), null);
+
+		assertThat(this.writtenSessions).hasValue(0);
+		this.writeBehind.flush();
+
+		assertThat(this.writtenSessions).hasValue(1);
+		assertThat(this.writeBehind.getQueueDepth()).isZero();
+	}
+
+	@Test
+	public void discardDropsQueuedWrites() {
+		this.writeBehind.submit(SessionWrite.document(JsonDocument.create(ID), false), null);
+
+		this.writeBehind.discard(ID);
+		this.writeBehind.flush();
+
+		assertThat(this.writtenSessions).hasValue(0);
+	}
+
+	@Test
+	public void discardWaitsForWriteInProgress() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		this.onWrite = () -> {
+			writing.countDown();
+			await(release);
+		};
+		this.writeBehind.submit(SessionWrite.document(JsonDocument.create(ID), false), null);
+
+		Future<?> flush = this.executor.submit(() -> this.writeBehind.flush());
+		assertThat(writing.await(10, TimeUnit.SECONDS)).isTrue();
+		Future<?> discard = this.executor.submit(() -> this.writeBehind.discard(ID));
+
+		Thread.sleep(100);
+		assertThat(discard.isDone()).isFalse();
+		release.countDown();
+		discard.get(10, TimeUnit.SECONDS);
+		flush.get(10, TimeUnit.SECONDS);
+		assertThat(this.writtenSessions).hasValue(1);
+	}
+
+	/**
+	 * Races a flush of the queue with the discard of the queued session. Once discard
+	 * returned, the session must not be written anymore, otherwise the write of the
+	 * flusher would land after the removal of the session and bring it back.
+	 */
+	@Test
+	public void noWriteStartsAfterDiscardReturned() throws Exception {
+		AtomicBoolean discarded = new AtomicBoolean();
+		AtomicBoolean writtenAfterDiscard = new AtomicBoolean();
+		this.onWrite = () -> {
+			if (discarded.get()) {
+				writtenAfterDiscard.set(true);
+			}
+		};
+
+		for (int i = 0; i < 20000 && !writtenAfterDiscard.get(); i++) {
+			discarded.set(false);
+			this.writeBehind.submit(SessionWrite.document(JsonDocument.create(ID), false), null);
+			CountDownLatch start = new CountDownLatch(1);
+			Future<?> flush = this.executor.submit(() -> {
+				await(start);
+				this.writeBehind.flush();
+			});
+			Future<?> discard = this.executor.submit(() -> {
+				await(start);
+				this.writeBehind.discard(ID);
+				discarded.set(true);
+			});
+			start.countDown();
+			flush.get(10, TimeUnit.SECONDS);
+			discard.get(10, TimeUnit.SECONDS);
+		}
+
+		assertThat(writtenAfterDiscard).isFalse();
+	}
+
+	@Test
+	public void documentOfNewSessionStillCreatesItWhenReplacedByLaterSave() {
+		this.writeBehind.submit(SessionWrite.document(JsonDocument.create(ID), false),
+				null);
+		this.writeBehind.submit(SessionWrite.document(JsonDocument.create(ID), true),
+				null);
+
+		List<PendingSession> batch = flushBatch();
+
+		assertThat(batch.get(0).getWrites()).hasSize(1);
+		assertThat(batch.get(0).getWrites().get(0).isStored()).isFalse();
+	}
+
+	@Test
+	public void documentOfStoredSessionReplacesIt() {
+		this.writeBehind.submit(SessionWrite.document(JsonDocument.create(ID), true),
+				null);
+
+		List<PendingSession> batch = flushBatch();
+
+		assertThat(batch.get(0).getWrites().get(0).isStored()).isTrue();
+	}
+
+	private List<PendingSession> flushBatch() {
+		List<List<PendingSession>> batches = new ArrayList<>();
+		this.onBatch = batches::add;
+		this.writeBehind.flush();
+		assertThat(batches).hasSize(1);
+		return batches.get(0);
+	}
+
+	private int write(List<PendingSession> batch) {
+		this.onBatch.accept(batch);
+		this.onWrite.run();
+		this.writtenSessions.addAndGet(batch.size());
+		return 0;
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_KEEP_STRING_AS_LITERAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_NAME_TYPE;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_VALUE_TYPE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.springframework.session.FindByIndexNameSessionRepository;
+
+import com.couchbase.client.java.document.ByteArrayDocument;
+
+/**
+ * Round trips of sessions through the binary documents of
+ * {@link JdkCouchbaseSessionConverter}.
+ */
+public class JdkCouchbaseSessionConverterTests {
+
+	private static final String ID = "session-id";
+
+	private final JdkCouchbaseSessionConverter converter = new JdkCouchbaseSessionConverter(
+			DEFAULT_NAME_TYPE, DEFAULT_VALUE_TYPE, DEFAULT_INACTIVE_INTERVAL,
+			DEFAULT_KEEP_STRING_AS_LITERAL);
+
+	@Test
+	public void binaryDocumentKeepsMetadataAndAttributes() {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME,
+				"user");
+		session.setAttribute("visits", 42L);
+		session.setAttribute("recherches récentes",
+				new ArrayList<>(Arrays.asList("couchbase", "session")));
+
+		CouchbaseSession read = this.converter
+				.convertFromBinary(this.converter.convertToBinary(session));
+
+		assertThat(read.getId()).isEqualTo(ID);
+		assertThat(read.getCreationTimeMillis()).isEqualTo(session.getCreationTimeMillis());
+		assertThat(read.getLastAccessedTimeMillis())
+				.isEqualTo(session.getLastAccessedTimeMillis());
+		assertThat(read.getExpireAtMillis()).isEqualTo(session.getExpireAtMillis());
+		assertThat(read.getMaxInactiveInterval())
+				.isEqualTo(session.getMaxInactiveInterval());
+		assertThat(this.converter.extractPrincipal(read)).isEqualTo("user");
+		assertThat(read.getAttributeNames())
+				.isEqualTo(session.getAttributeNames());
+		assertThat(read.<Long> getAttribute("visits")).isEqualTo(42L);
+		assertThat(read.<Object> getAttribute("recherches récentes"))
+				.isEqualTo(Arrays.asList("couchbase", "session"));
+	}
+
+	@Test
+	public void unreadAttributesAreWrittenBackInTheirStoredForm() {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		session.setAttribute("visits", 42L);
+		ByteArrayDocument document = this.converter.convertToBinary(session);
+
+		ByteArrayDocument rewritten = this.converter
+				.convertToBinary(this.converter.convertFromBinary(document));
+
+		assertThat(rewritten.content()).isEqualTo(document.content());
+	}
+
+	@Test
+	public void namesUpToTheUnsignedShortLimitAreKept() {
+		String name = repeat('a', 0xFFFF);
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		session.setAttribute(name, "value");
+
+		CouchbaseSession read = this.converter
+				.convertFromBinary(this.converter.convertToBinary(session));
+
+		assertThat(read.<String> getAttribute(name)).isEqualTo("value");
+	}
+
+	@Test
+	public void attributeNameLongerThanTheLengthPrefixIsRejected() {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		// three UTF-8 bytes per character
+		session.setAttribute(repeat('€', 0xFFFF / 3 + 1), "value");
+
+		assertThatThrownBy(() -> this.converter.convertToBinary(session))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("Attribute name");
+	}
+
+	@Test
+	public void principalLongerThanTheLengthPrefixIsRejected() {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		session.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME,
+				repeat('a', 0xFFFF + 1));
+
+		assertThatThrownBy(() -> this.converter.convertToBinary(session))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("Principal name");
+	}
+
+	private static String repeat(char c, int count) {
+		return String.join("", Collections.nCopies(count, String.valueOf(c)));
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_INACTIVE_INTERVAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_KEEP_STRING_AS_LITERAL;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_NAME_TYPE;
+import static org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseSessionDefaults.DEFAULT_VALUE_TYPE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * Round trips of session attributes through {@link KryoCouchbaseSessionConverter}.
+ */
+public class KryoCouchbaseSessionConverterTests {
+
+	private static final String ID = "session-id";
+
+	@Test
+	public void unmodifiableCollectionsAreReadBackUnmodifiable() {
+		KryoCouchbaseSessionConverter converter = converter(Collections.emptyList());
+
+		assertUnmodifiableRoundTrip(converter,
+				Collections.unmodifiableList(new ArrayList<>(Arrays.asList("a", "b"))));
+		assertUnmodifiableRoundTrip(converter,
+				Collections.unmodifiableSet(new HashSet<>(Arrays.asList("a", "b"))));
+		assertUnmodifiableRoundTrip(converter, Collections
+				.unmodifiableCollection(new ArrayList<>(Arrays.asList("a", "b"))));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void unmodifiableCollectionsOnlyNeedTheirElementsRegistered() {
+		KryoCouchbaseSessionConverter converter = converter(
+				Collections.singletonList(UUID.class));
+		UUID id = UUID.randomUUID();
+
+		assertUnmodifiableRoundTrip(converter,
+				Collections.unmodifiableList(new ArrayList<>(Arrays.asList(id))));
+		Map<String, Object> map = new HashMap<>();
+		map.put("id", id);
+		Object read = roundTrip(converter, Collections.unmodifiableMap(map));
+		assertThat(read).isEqualTo(map);
+		assertThatThrownBy(() -> ((Map<String, Object>) read).clear())
+				.isInstanceOf(UnsupportedOperationException.class);
+	}
+
+	@Test
+	public void sortedCollectionsKeepTheirOrder() {
+		KryoCouchbaseSessionConverter converter = converter(Collections.emptyList());
+		SortedSet<String> set = new TreeSet<>(Comparator.reverseOrder());
+		set.addAll(Arrays.asList("a", "c", "b"));
+
+		Object read = roundTrip(converter, Collections.unmodifiableSortedSet(set));
+
+		assertThat((Set<?>) read).containsExactly("c", "b", "a");
+		Object readMap = roundTrip(converter, Collections
+				.unmodifiableSortedMap(new TreeMap<>(Collections.singletonMap("a", 1))));
+		assertThat(readMap).isEqualTo(Collections.singletonMap("a", 1));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void assertUnmodifiableRoundTrip(
+			KryoCouchbaseSessionConverter converter, Collection<?> collection) {
+		Object read = roundTrip(converter, collection);
+		assertThat(read).isInstanceOf(collection.getClass());
+		assertThat((Collection<Object>) read).containsExactlyElementsOf(collection);
+		assertThatThrownBy(() -> ((Collection<Object>) read).add("c"))
+				.isInstanceOf(UnsupportedOperationException.class);
+	}
+
+	private static Object roundTrip(KryoCouchbaseSessionConverter converter,
+			Object value) {
+		CouchbaseSession session = new CouchbaseSession(ID, DEFAULT_INACTIVE_INTERVAL);
+		session.setAttribute("value", value);
+		CouchbaseSession read = converter.convert(converter.convert(session));
+		return read.getAttribute("value");
+	}
+
+	private static KryoCouchbaseSessionConverter converter(
+			List<Class<?>> registeredClasses) {
+		return new KryoCouchbaseSessionConverter(registeredClasses, null,
+				DEFAULT_NAME_TYPE, DEFAULT_VALUE_TYPE, DEFAULT_INACTIVE_INTERVAL,
+				DEFAULT_KEEP_STRING_AS_LITERAL);
+	}
+}